@@ -12,6 +12,7 @@ import edu.berkeley.cellscope.cscore.devices.bluetooth.BluetoothDeviceConnectabl
 
 public class TouchPanControl extends TouchControl {
 	private BluetoothDeviceConnectable stage;
+	private TouchSwipeControl positionCounter; //Told about every pan, since pans move the stage by an unknown distance
 	private double touchX, touchY;
 	private double zZone;
 	private int panState;
@@ -71,8 +72,15 @@ public class TouchPanControl extends TouchControl {
 	}
 
 
+	/* Pans invalidate the position counted by s, and update its record of the last direction along each axis. May be null. */
+	public void setPositionCounter(TouchSwipeControl s) {
+		positionCounter = s;
+	}
+
 	public void panStage(int newState) {
 		stage.writeByte((byte)newState);
 		stage.writeByte((byte)0);
+		if (positionCounter != null && newState != stopMotor)
+			positionCounter.panned(newState);
 	}
 }
@@ -11,6 +11,10 @@ public class TouchSwipeControl extends TouchControl {
 	protected BluetoothDeviceConnectable stage;
 	private double touchX, touchY;
 	private int lastX, lastY;
+	private int positionX, positionY, positionZ; //Steps moved along each axis since the last resetPosition(), less any x-y backlash taken up
+	private boolean positionKnown; //false once the stage has been moved by commands that are not counted
+	private int backlashX, backlashY; //Steps lost to backlash after a reversal, from setBacklash()
+	private int slackX, slackY; //Backlash left to take up since the last reversal
 
 	private static final double SENSITIVITY = 0.1;
 
@@ -19,6 +23,7 @@ public class TouchSwipeControl extends TouchControl {
 		stage = s;
 		touchX = touchY = firstTouchEvent;
 		lastX = lastY = stopMotor;
+		positionKnown = true;
 	}
 
 	@Override
@@ -62,11 +67,74 @@ public class TouchSwipeControl extends TouchControl {
 	public void swipe(int dir, int dist) {
 		stage.writeByte((byte)dir);
 		stage.writeByte((byte)dist);
+		int moved = dist;
 		if (dir == xPositive || dir == xNegative) {
+			if (lastX != stopMotor && lastX != dir)
+				slackX = backlashX;
+			moved = Math.max(0, dist - slackX);
+			slackX = Math.max(0, slackX - dist);
 			lastX = dir;
 		} else if (dir == yPositive || dir == yNegative) {
+			if (lastY != stopMotor && lastY != dir)
+				slackY = backlashY;
+			moved = Math.max(0, dist - slackY);
+			slackY = Math.max(0, slackY - dist);
 			lastY = dir;
 		}
+		if (dir == xPositive)
+			positionX += moved;
+		else if (dir == xNegative)
+			positionX -= moved;
+		else if (dir == yPositive)
+			positionY += moved;
+		else if (dir == yNegative)
+			positionY -= moved;
+		else if (dir == zPositive)
+			positionZ += dist;
+		else if (dir == zNegative)
+			positionZ -= dist;
+	}
+
+	/* Position of the stage, in steps, relative to where it was at the last resetPosition(). */
+	public int getPositionX() {
+		return positionX;
+	}
+
+	public int getPositionY() {
+		return positionY;
+	}
+
+	public int getPositionZ() {
+		return positionZ;
+	}
+
+	/* Make the stage's current position the origin. */
+	public void resetPosition() {
+		positionX = positionY = positionZ = 0;
+		positionKnown = true;
+	}
+
+	/* False if the stage has been moved by an unknown distance since the last resetPosition(). */
+	public boolean isPositionKnown() {
+		return positionKnown;
+	}
+
+	/* Record that the stage was moved in direction dir by an unknown number of steps, such as by TouchPanControl. */
+	public void panned(int dir) {
+		positionKnown = false;
+		if (dir == xPositive || dir == xNegative) {
+			lastX = dir;
+			slackX = 0;
+		} else if (dir == yPositive || dir == yNegative) {
+			lastY = dir;
+			slackY = 0;
+		}
+	}
+
+	/* Steps lost to backlash whenever an axis reverses, as found by StepCalibrator. Used to keep the position counters true. */
+	public void setBacklash(int x, int y) {
+		backlashX = x;
+		backlashY = y;
 	}
 
 	public void swipeX(int steps) {
@@ -89,6 +157,15 @@ public class TouchSwipeControl extends TouchControl {
 		return stage.isReadyForWrite();
 	}
 
+	/* Direction of the last command along the same axis as dir, or stopMotor if there has been none. */
+	public int getLastDirection(int dir) {
+		if (dir == xPositive || dir == xNegative)
+			return lastX;
+		if (dir == yPositive || dir == yNegative)
+			return lastY;
+		return stopMotor;
+	}
+
 	public boolean backlashOccurs(int dir) {
 		if (dir == xPositive || dir == xNegative)
 			return lastX != dir;
@@ -3,10 +3,7 @@ package edu.berkeley.cellscope.cscore.celltracker;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.core.Size;
-import org.opencv.imgproc.Imgproc;
 
 import edu.berkeley.cellscope.cscore.cameraui.TouchSwipeControl;
 /*
@@ -20,9 +17,20 @@ import edu.berkeley.cellscope.cscore.cameraui.TouchSwipeControl;
  * 6. Halve stride size.
  * 7. Repeat 2 thru 6 until stopped, or until stride size drops below a minimum. If latter, quit and report success.
  * 
- * Scores are calculated via edge detection. The scores peak in a range fo about 128 steps,
+ * Scores are calculated by a FocusMetric, edge detection by default. The scores peak in a range fo about 128 steps,
  * and is noisy on either side of the peak. Start the initial stride size at 64 steps.
  * (steps refers to steps on the stepper motor. stride refers to a series of steps taken at once)
+ *
+ * MODE_MODEL replaces the sweep with a model-based search:
+ * 1. Score MODEL_SAMPLES positions, one stride apart, centered on the starting position.
+ * 	1a. If the best score is at either end, sample one more stride past it, up to MODEL_EXTENSIONS times.
+ * 2. Fit a Gaussian (a parabola through the log of the scores) around the best sample, and move to its peak.
+ * 3. Score the peak and one refinement sample on either side, and move to the vertex of the parabola through the three.
+ * This usually takes under a dozen moves, instead of several sweeps.
+ * getMoveCount() and getFrameCount() report the cost of the last run of either mode.
+ *
+ * With a FocusMap, every successful run is recorded against the stage's x-y position. Later runs near recorded
+ * positions first move directly to the interpolated Z, and then search with the narrow quickFocus() stride.
  */
 public class Autofocus implements RealtimeImageProcessor {
 	private TouchSwipeControl stage;
@@ -32,8 +40,22 @@ public class Autofocus implements RealtimeImageProcessor {
 	private int currentPosition, targetPosition;
 	private int stridesTaken;
 	private int waitFrames, state;
-	private int bestScore, bestNetScore, lowestNetScore, unfocusedScore;
+	private double bestScore, bestNetScore, lowestNetScore, unfocusedScore;
+	private FocusMetric metric;
 	private boolean passedPeak;
+	private int mode;
+	private int moves, frames; //Cost of the current run
+	//Model search
+	private int phase;
+	private int zPosition; //Steps above the starting position
+	private int moveRemaining, moveDirection;
+	private int modelStride, extensions, samples;
+	private final int[] sampleZ;
+	private final double[] sampleScore;
+	private int peakZ;
+	private double peakScore, upScore;
+	private FocusMap focusMap; //null if results are not recorded
+	private int seekStride; //Stride used for the search after seeking
 
 	private final Object lockStatus;
 
@@ -44,11 +66,26 @@ public class Autofocus implements RealtimeImageProcessor {
 	private static final double STRICTNESS = 0.9; //0~1. How close to perfect do we stop at? Autofocus will be more likely to fail
 	//and overshoot if this is too high, but will stop out of focus when too low
 	private static final int PAUSE = 3; //Number of frames to wait after motion stops for the camera to catch up.
-	private static final double EDGE_THRESHOLD_RATIO = 1.5;
-	private static final double EDGE_LOWER_THRESHOLD = 64;
 	private static final int STATE_READY = 0; //At rest, preparing for direct movement
 	private static final int STATE_MOVING = 1; //Currently in direct movement
 	private static final int STATE_STEPPING = 2; //In movement, stopping at intervals for analysis
+	private static final int STATE_SAMPLING = 3; //Model search, moving to a position and then scoring it
+	private static final int STATE_SEEKING = 4; //Moving to the Z position predicted by the focus map before searching
+
+	public static final int MODE_HILL_CLIMB = 0; //Sweep with a decreasing stride until the peak is bracketed
+	public static final int MODE_MODEL = 1; //Sample a few positions and jump to the peak of a fitted curve
+
+	private static final int PHASE_SWEEP = 0;
+	private static final int PHASE_PEAK = 1;
+	private static final int PHASE_REFINE_UP = 2;
+	private static final int PHASE_REFINE_DOWN = 3;
+	private static final int PHASE_FINAL = 4;
+
+	private static final int MODEL_SAMPLES = 5; //Number of positions sampled before fitting
+	private static final int MODEL_EXTENSIONS = 2; //Extra samples allowed when the peak lies outside the sampled range
+	private static final int REFINE_STRIDE = MINIMUM_STRIDE; //Distance of the refinement samples from the predicted peak
+	private static final double MODEL_CONTRAST = 1.5; //The best sample must score this many times the worst, or the search fails
+	private static final int MAX_SWIPE = 127; //Largest number of steps in one command
 	private static final int STARTING_DIRECTION = TouchSwipeControl.zNegative;
 	private static final int OPPOSITE_DIRECTION = TouchSwipeControl.zPositive;
 
@@ -56,8 +93,6 @@ public class Autofocus implements RealtimeImageProcessor {
 
 	private static final int SCORE_PEAK_SIZE = 4;
 
-	private static final Size BLUR = new Size(3, 3);
-
 	public static final String SUCCESS_MESSAGE = "Autofocus successful";
 	public static final String FAILURE_MESSAGE = "Autofocus failed";
 
@@ -66,6 +101,31 @@ public class Autofocus implements RealtimeImageProcessor {
 		busy = false;
 		lockStatus = new Object();
 		callbacks = new ArrayList<AutofocusCallback>();
+		metric = new FocusMetrics.EdgeCount();
+		sampleZ = new int[MODEL_SAMPLES + MODEL_EXTENSIONS];
+		sampleScore = new double[MODEL_SAMPLES + MODEL_EXTENSIONS];
+	}
+
+	/* Either MODE_HILL_CLIMB (default) or MODE_MODEL. Takes effect on the next run. */
+	public void setMode(int m) {
+		mode = m;
+	}
+
+	/* Selects how frames are scored. Defaults to FocusMetrics.EdgeCount on the whole frame.
+	 * The hill climb's thresholds are relative, so any metric can be used with either mode.
+	 */
+	public synchronized void setFocusMetric(FocusMetric m) {
+		metric = m;
+	}
+
+	/* Number of commands sent to the motor during the last run. */
+	public int getMoveCount() {
+		return moves;
+	}
+
+	/* Number of camera frames received during the last run. */
+	public int getFrameCount() {
+		return frames;
 	}
 
 	public void addCallback(AutofocusCallback a) {
@@ -76,33 +136,67 @@ public class Autofocus implements RealtimeImageProcessor {
 		callbacks.remove(a);
 	}
 
+	/* Records every successful result in map, and seeds later runs near mapped positions from it. May be null. */
+	public synchronized void setFocusMap(FocusMap map) {
+		focusMap = map;
+	}
+
+	public FocusMap getFocusMap() {
+		return focusMap;
+	}
+
 	public void start() {
 		if (busy || !stage.bluetoothConnected())
 			return;
 		System.out.println("begin focus");
-		synchronized(lockStatus) {
-			busy = true;
-			stridesTaken = 0;
-			bestNetScore = bestScore = lowestNetScore = 0;
-			direction = STARTING_DIRECTION;
-			passedPeak = false;
-			strideSize = INITIAL_STRIDE;
-			state = STATE_READY;
-			continueRunning();
-		}
+		begin(INITIAL_STRIDE);
 	}
 
 	public void quickFocus() {
 		if (busy || !stage.bluetoothConnected())
 			return;
 		System.out.println("begin focus");
+		begin(QUICK_INITIAL_STRIDE);
+	}
+
+	/* If the focus map has entries near the stage's position, move straight to the interpolated Z
+	 * and search a narrow window around it. Otherwise, search with the given stride.
+	 */
+	private void begin(int stride) {
 		synchronized(lockStatus) {
 			busy = true;
+			moves = frames = 0;
+			if (focusMap != null && !stage.isPositionKnown()) {
+				//The stage was panned by an unknown distance, so the map no longer lines up with the position
+				System.out.println("stage position lost; clearing focus map");
+				focusMap.clear();
+				stage.resetPosition();
+			}
+			double seed = (focusMap == null) ? Double.NaN : focusMap.estimate(stage.getPositionX(), stage.getPositionY());
+			if (Double.isNaN(seed)) {
+				beginSearch(stride);
+				return;
+			}
+			System.out.println("seeding focus at z=" + seed);
+			seekStride = Math.min(stride, QUICK_INITIAL_STRIDE);
+			state = STATE_SEEKING;
+			phase = PHASE_SWEEP;
+			zPosition = stage.getPositionZ();
+			moveTo((int)Math.round(seed));
+		}
+	}
+
+	private void beginSearch(int stride) {
+		synchronized(lockStatus) {
+			if (mode == MODE_MODEL) {
+				beginModel(stride);
+				return;
+			}
 			stridesTaken = 0;
 			bestNetScore = bestScore = lowestNetScore = 0;
 			direction = STARTING_DIRECTION;
 			passedPeak = false;
-			strideSize = QUICK_INITIAL_STRIDE;
+			strideSize = stride;
 			state = STATE_READY;
 			continueRunning();
 		}
@@ -116,6 +210,10 @@ public class Autofocus implements RealtimeImageProcessor {
 			stop();
 			return;
 		}
+		if (state == STATE_SAMPLING || state == STATE_SEEKING) {
+			continueMove();
+			return;
+		}
 		if (strideSize < MINIMUM_STRIDE) {
 			complete();
 		}
@@ -140,7 +238,9 @@ public class Autofocus implements RealtimeImageProcessor {
 
 	public synchronized void processFrame(Mat mat) {
 		synchronized(lockStatus) {
-			if (!busy || waitFrames == NO_CALCULATION || state != STATE_STEPPING)
+			if (busy)
+				frames ++;
+			if (!busy || waitFrames == NO_CALCULATION || (state != STATE_STEPPING && state != STATE_SAMPLING))
 				return;
 			if (waitFrames > 0) {
 				waitFrames --;
@@ -148,13 +248,15 @@ public class Autofocus implements RealtimeImageProcessor {
 			}
 			waitFrames = NO_CALCULATION;
 		}
+		if (state == STATE_SAMPLING) {
+			modelSample(metric.score(mat));
+			return;
+		}
 		if (stridesTaken > Z_RANGE)
 			stop();
 		stridesTaken ++;
-		Mat data = new Mat(mat.size(), mat.type());
-		mat.copyTo(data);
-		if (!calculateFocus(data))
-			stage.swipe(direction, strideSize);
+		if (!calculateFocus(mat))
+			swipe(direction, strideSize);
 	}
 
 	private void switchDirection() {
@@ -175,7 +277,7 @@ public class Autofocus implements RealtimeImageProcessor {
 		if (currentPosition >= targetPosition)
 			return true;
 		currentPosition += strideSize;
-		stage.swipe(direction, strideSize);
+		swipe(direction, strideSize);
 		return false;
 	}
 
@@ -189,16 +291,18 @@ public class Autofocus implements RealtimeImageProcessor {
 		busy = false;
 		for (AutofocusCallback a: callbacks)
 			a.focusComplete(false);
-		System.out.println("focus failed");
+		System.out.println("focus failed after " + moves + " moves, " + frames + " frames");
 	}
 
 	public void complete() {
 		if (!busy)
 			return;
 		busy = false;
+		if (focusMap != null)
+			focusMap.add(stage.getPositionX(), stage.getPositionY(), stage.getPositionZ());
 		for (AutofocusCallback a: callbacks)
 			a.focusComplete(true);
-		System.out.println("focus completed");
+		System.out.println("focus completed in " + moves + " moves, " + frames + " frames");
 	}
 
 	private void calculationComplete() {
@@ -212,15 +316,155 @@ public class Autofocus implements RealtimeImageProcessor {
 		if (strideSize <= MINIMUM_STRIDE)
 			continueRunning();
 		else
-			stage.swipe(direction, strideSize);
+			swipe(direction, strideSize);
+	}
+
+	private void swipe(int dir, int steps) {
+		moves ++;
+		stage.swipe(dir, steps);
+	}
+
+	private void beginModel(int stride) {
+		modelStride = stride;
+		zPosition = 0;
+		samples = 0;
+		extensions = 0;
+		phase = PHASE_SWEEP;
+		state = STATE_SAMPLING;
+		moveTo(-stride * (MODEL_SAMPLES / 2));
+	}
+
+	/* Start moving to z, relative to the starting position. The frame is scored once the move is complete. */
+	private void moveTo(int z) {
+		int delta = z - zPosition;
+		zPosition = z;
+		moveDirection = delta > 0 ? TouchSwipeControl.zPositive : TouchSwipeControl.zNegative;
+		moveRemaining = Math.abs(delta);
+		synchronized(lockStatus) {
+			waitFrames = NO_CALCULATION;
+		}
+		continueMove();
+	}
+
+	//Send the next part of the current move, or prepare to score the frame once the move is done.
+	private void continueMove() {
+		if (moveRemaining == 0) {
+			if (state == STATE_SEEKING)
+				beginSearch(seekStride);
+			else if (phase == PHASE_FINAL)
+				complete();
+			else synchronized(lockStatus) {
+				waitFrames = PAUSE;
+			}
+			return;
+		}
+		int steps = Math.min(moveRemaining, MAX_SWIPE);
+		moveRemaining -= steps;
+		swipe(moveDirection, steps);
+	}
+
+	private void modelSample(double score) {
+		System.out.println("[z=" + zPosition + ", score=" + score + ", phase=" + phase + "]");
+		if (phase == PHASE_SWEEP) {
+			sampleZ[samples] = zPosition;
+			sampleScore[samples] = score;
+			samples ++;
+			if (samples < MODEL_SAMPLES) {
+				moveTo(zPosition + modelStride);
+				return;
+			}
+			int best = 0, lowest = 0, worst = 0, highest = 0;
+			for (int i = 1; i < samples; i ++) {
+				if (sampleScore[i] > sampleScore[best])
+					best = i;
+				if (sampleScore[i] < sampleScore[worst])
+					worst = i;
+				if (sampleZ[i] < sampleZ[lowest])
+					lowest = i;
+				if (sampleZ[i] > sampleZ[highest])
+					highest = i;
+			}
+			if (sampleScore[best] <= 0 || sampleScore[best] < sampleScore[worst] * MODEL_CONTRAST) {
+				stop(); //No peak in range
+				return;
+			}
+			if ((best == lowest || best == highest) && extensions < MODEL_EXTENSIONS) {
+				extensions ++;
+				moveTo(best == lowest ? sampleZ[lowest] - modelStride : sampleZ[highest] + modelStride);
+				return;
+			}
+			double peak = fitPeak(sampleZ, sampleScore, samples, sampleZ[best], modelStride * 2);
+			if (Double.isNaN(peak))
+				peak = sampleZ[best];
+			peak = Math.max(sampleZ[lowest], Math.min(sampleZ[highest], peak));
+			phase = PHASE_PEAK;
+			moveTo((int)Math.round(peak));
+		}
+		else if (phase == PHASE_PEAK) {
+			peakZ = zPosition;
+			peakScore = score;
+			phase = PHASE_REFINE_UP;
+			moveTo(peakZ + REFINE_STRIDE);
+		}
+		else if (phase == PHASE_REFINE_UP) {
+			upScore = score;
+			phase = PHASE_REFINE_DOWN;
+			moveTo(peakZ - REFINE_STRIDE);
+		}
+		else if (phase == PHASE_REFINE_DOWN) {
+			int target;
+			if (upScore > peakScore && upScore >= score)
+				target = peakZ + REFINE_STRIDE;
+			else if (score > peakScore)
+				target = peakZ - REFINE_STRIDE;
+			else
+				target = peakZ + (int)Math.round(MathUtils.parabolicOffset(score, peakScore, upScore) * REFINE_STRIDE);
+			phase = PHASE_FINAL;
+			moveTo(target);
+		}
+	}
+
+	/* Fit a Gaussian to the samples within range of center, by fitting a parabola through the log of the scores.
+	 * Falls back on a parabola through the scores if any are 0.
+	 * Returns the position of the peak, or NaN if the fit has no maximum.
+	 */
+	static double fitPeak(int[] z, double[] score, int n, int center, int range) {
+		boolean log = true;
+		for (int i = 0; i < n; i ++)
+			if (Math.abs(z[i] - center) <= range && score[i] <= 0)
+				log = false;
+		//Least squares y = a*x^2 + b*x + c, with x relative to center
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, t0 = 0, t1 = 0, t2 = 0;
+		for (int i = 0; i < n; i ++) {
+			if (Math.abs(z[i] - center) > range)
+				continue;
+			double x = (z[i] - center) / (double)range;
+			double y = log ? Math.log(score[i]) : score[i];
+			s0 += 1;
+			s1 += x;
+			s2 += x * x;
+			s3 += x * x * x;
+			s4 += x * x * x * x;
+			t0 += y;
+			t1 += x * y;
+			t2 += x * x * y;
+		}
+		if (s0 < 3)
+			return Double.NaN;
+		//Solve [s4 s3 s2; s3 s2 s1; s2 s1 s0] * [a b c] = [t2 t1 t0] by Cramer's rule
+		double det = s4 * (s2 * s0 - s1 * s1) - s3 * (s3 * s0 - s1 * s2) + s2 * (s3 * s1 - s2 * s2);
+		if (det == 0)
+			return Double.NaN;
+		double a = (t2 * (s2 * s0 - s1 * s1) - s3 * (t1 * s0 - s1 * t0) + s2 * (t1 * s1 - s2 * t0)) / det;
+		double b = (s4 * (t1 * s0 - s1 * t0) - t2 * (s3 * s0 - s1 * s2) + s2 * (s3 * t0 - t1 * s2)) / det;
+		if (a >= 0)
+			return Double.NaN;
+		return center - b / (2 * a) * range;
 	}
 
-	//return true when the peak is passed
+	//return true when the peak is passed. img is not modified.
 	public boolean calculateFocus(Mat img) {
-		Imgproc.cvtColor(img, img, Imgproc.COLOR_BGR2GRAY);
-		Imgproc.blur(img, img, BLUR);
-		Imgproc.Canny(img, img, EDGE_LOWER_THRESHOLD, EDGE_LOWER_THRESHOLD * EDGE_THRESHOLD_RATIO);
-		int score = Core.countNonZero(img);
+		double score = metric.score(img);
 
 		System.out.println("[score=" + score + ", high=" + bestScore + ", best=" + bestNetScore + ", low=" + lowestNetScore + ", direction=" + direction);
 
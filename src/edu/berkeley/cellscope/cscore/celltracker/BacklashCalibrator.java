@@ -2,7 +2,6 @@ package edu.berkeley.cellscope.cscore.celltracker;
 
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
-import org.opencv.core.Size;
 
 import edu.berkeley.cellscope.cscore.cameraui.TouchControl;
 import edu.berkeley.cellscope.cscore.cameraui.TouchSwipeControl;
@@ -22,10 +21,9 @@ public class BacklashCalibrator implements RealtimeImageProcessor {
 	private int currentState, currentDir;
 	private int wait;
 	private boolean continueCalibration;
-	private int trackerResponses;
 	private int moves;
-	private FovTracker[] trackers;
-	private TrackerResult[] trackerResults;
+	private MultiRoiTracker tracker;
+	private TrackerResult trackerResult;
 	private TouchSwipeControl stage;
 	private CalibrationCallback callback;
 
@@ -43,10 +41,10 @@ public class BacklashCalibrator implements RealtimeImageProcessor {
 
 	private static final double TRACKER_SIZE = 0.05;
 	private static final double TRACKER_SPACING = 0.07;
-	private static final int TRACKER_COUNT = 4;
 
 	private static final int BACKLASH_LIMIT = 42;
 	private static final int WAIT_FRAMES = 2;
+	private static final double STILL_THRESHOLD = 0.5;
 	public static final String SUCCESS_MESSAGE = "Calibration successful";
 	public static final String FAILURE_MESSAGE = "Calibration failed";
 
@@ -58,32 +56,10 @@ public class BacklashCalibrator implements RealtimeImageProcessor {
 		calibrated = false;
 		busy = false;
 		stage = s;
-		trackers = new FovTracker[TRACKER_COUNT];
-		int dimen = w < h ? w: h;
-		int spacing = (int)(dimen * TRACKER_SPACING);
-		int size = (int)(dimen * TRACKER_SIZE);
-		Size rectSize = new Size(size, size);
-		Point loc = new Point();
-		MathUtils.set(loc, w / 2 - spacing, h / 2 - spacing);
-		trackers[0] = new FovTracker(w, h, MathUtils.createCenteredRect(loc, rectSize));
-		trackers[0].setPause(2);
-
-		MathUtils.set(loc, w / 2 + spacing, h / 2 - spacing);
-		trackers[1] = new FovTracker(w, h, MathUtils.createCenteredRect(loc, rectSize));
-		trackers[1].setPause(2);
-
-		MathUtils.set(loc, w / 2 - spacing, h / 2 + spacing);
-		trackers[2] = new FovTracker(w, h, MathUtils.createCenteredRect(loc, rectSize));
-		trackers[2].setPause(2);
-
-		MathUtils.set(loc, w / 2 + spacing, h / 2 + spacing);
-		trackers[3] = new FovTracker(w, h, MathUtils.createCenteredRect(loc, rectSize));
-		trackers[3].setPause(2);
-
-		trackerResults = new TrackerResult[TRACKER_COUNT];
-		for (int i = 0; i < TRACKER_COUNT; i ++) {
-			trackerResults[i] = new TrackerResult(trackers[i]);
-		}
+		tracker = new MultiRoiTracker(MultiRoiTracker.cornerRois(w, h, TRACKER_SIZE, TRACKER_SPACING));
+		tracker.setPause(2);
+		tracker.setSubPixel(true); //Strides move only a few pixels, which the downscaled search would round away
+		trackerResult = new TrackerResult();
 
 		xPosStep = new Point();
 		xNegStep = new Point();
@@ -108,9 +84,7 @@ public class BacklashCalibrator implements RealtimeImageProcessor {
 			backlashResults[i] = 0;
 			MathUtils.set(stepResults[i], 0, 0);
 		}
-		for (FovTracker tracker: trackers) {
-			tracker.start();
-		}
+		tracker.start();
 	}
 
 	private void executeCalibration() {
@@ -157,9 +131,7 @@ public class BacklashCalibrator implements RealtimeImageProcessor {
 		}
 		else if (currentState == STATE_STEP) {
 			System.out.println("step " + currentDir);
-			for (int i = 0; i < TRACKER_COUNT; i ++) {
-				MathUtils.add(stepResults[currentDir], trackerResults[i].movement);
-			}
+			MathUtils.add(stepResults[currentDir], trackerResult.movement);
 			System.out.println(stepResults[currentDir]);
 			moves ++;
 			if (moves == REQUIRED_STEP_MOVES) {
@@ -188,21 +160,15 @@ public class BacklashCalibrator implements RealtimeImageProcessor {
 	}
 
 	public void processFrame(Mat mat) {
-		for (FovTracker tracker: trackers) {
-			tracker.processFrame(mat);
-		}
+		tracker.processFrame(mat);
 	}
 
 	public void displayFrame(Mat mat) {
-		for (FovTracker tracker: trackers) {
-			tracker.displayFrame(mat);
-		}
+		tracker.displayFrame(mat);
 	}
 
 	public void continueRunning() {
-		for (FovTracker tracker: trackers) {
-			tracker.resume();
-		}
+		tracker.resume();
 	}
 
 
@@ -216,14 +182,12 @@ public class BacklashCalibrator implements RealtimeImageProcessor {
 
 	private void calibrationComplete() {
 		System.out.println("calibration complete");
-		for (FovTracker tracker: trackers) {
-			tracker.stop();
-		}
+		tracker.stop();
 		System.out.println("Step sizes: ");
 		System.out.println("x - " + xPosStep + " " + xNegStep);
 		System.out.println("y - " + yPosStep + " " + yNegStep);
 		for (int i = 0; i < stepResults.length; i ++) {
-			MathUtils.divide(stepResults[i], TRACKER_COUNT * REQUIRED_STEP_MOVES * STEP_SIZE);
+			MathUtils.divide(stepResults[i], REQUIRED_STEP_MOVES * STEP_SIZE);
 		}
 		xPosBacklash = backlashResults[0];
 		xNegBacklash = backlashResults[1];
@@ -247,9 +211,7 @@ public class BacklashCalibrator implements RealtimeImageProcessor {
 
 	public void calibrationFailed() {
 		System.out.println("calibration failed");
-		for (FovTracker tracker: trackers) {
-			tracker.stop();
-		}
+		tracker.stop();
 		busy = false;
 		calibrated = false;
 		callback.calibrationComplete(false);
@@ -263,36 +225,25 @@ public class BacklashCalibrator implements RealtimeImageProcessor {
 		continueCalibration = continueCalibration || result;
 	}
 
-	private synchronized boolean trackerResponsesComplete() {
-		trackerResponses ++;
-		if (trackerResponses == TRACKER_COUNT) {
-			trackerResponses = 0;
-			return true;
-		}
-		return false;
-	}
-
 	public static interface CalibrationCallback {
 		public void calibrationComplete(boolean success);
 	}
 
-	private class TrackerResult implements FovTracker.MotionCallback {
-		private FovTracker tracker;
+	private class TrackerResult implements MultiRoiTracker.MultiMotionCallback {
 		Point movement;
 
-		private TrackerResult(FovTracker ft) {
-			tracker = ft;
+		private TrackerResult() {
 			tracker.addCallback(this);
 			movement = new Point();
 		}
 
-		public synchronized void motionResult(Point result) {
-			continueCalibration(result.x == 0 && result.y == 0);
+		public synchronized void motionResult(Point combined, Point[] perRoi) {
 			tracker.pause();
-			MathUtils.set(movement, result);
-			if (trackerResponsesComplete()) {
-				executeCalibration();
+			for (Point p: perRoi) {
+				continueCalibration(p == null || Math.hypot(p.x, p.y) < STILL_THRESHOLD);
 			}
+			MathUtils.set(movement, combined);
+			executeCalibration();
 		}
 	}
 
@@ -0,0 +1,83 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import org.opencv.core.Point;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/*
+ * Saves StepCalibrator results between sessions.
+ * Profiles are keyed by the stage's device address and the camera zoom, since the step sizes in pixels
+ * depend on both. A stored profile is not trusted blindly: warmStart() has the calibrator check it with
+ * a few strides, and only runs a full calibration if it no longer matches.
+ */
+public class CalibrationStore {
+	private final SharedPreferences prefs;
+
+	private static final String PREFS_NAME = "stage_calibration";
+	private static final String KEY_PREFIX = "profile_";
+	private static final int VALUES = 6; //backlash x, y, xStep x, y, yStep x, y
+
+	public CalibrationStore(Context context) {
+		prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/* Verify the stored profile for this device and zoom if there is one, or fully calibrate otherwise. */
+	public void warmStart(StepCalibrator calibrator, String device, int zoom) {
+		Profile p = load(device, zoom);
+		if (p == null)
+			calibrator.start();
+		else
+			calibrator.verify(p);
+	}
+
+	/* Store the calibrator's current results. Does nothing if it is not calibrated. */
+	public void save(StepCalibrator calibrator, String device, int zoom) {
+		if (!calibrator.isCalibrated())
+			return;
+		save(calibrator.getProfile(), device, zoom);
+	}
+
+	public void save(Profile p, String device, int zoom) {
+		String value = p.backlash.x + "," + p.backlash.y + "," + p.xStep.x + "," + p.xStep.y + "," + p.yStep.x + "," + p.yStep.y;
+		prefs.edit().putString(key(device, zoom), value).commit();
+	}
+
+	/* Returns null if there is no usable profile for this device and zoom. */
+	public Profile load(String device, int zoom) {
+		String value = prefs.getString(key(device, zoom), null);
+		if (value == null)
+			return null;
+		String[] parts = value.split(",");
+		if (parts.length != VALUES)
+			return null;
+		double[] v = new double[VALUES];
+		try {
+			for (int i = 0; i < VALUES; i ++)
+				v[i] = Double.parseDouble(parts[i]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return new Profile(new Point(v[0], v[1]), new Point(v[2], v[3]), new Point(v[4], v[5]));
+	}
+
+	public void remove(String device, int zoom) {
+		prefs.edit().remove(key(device, zoom)).commit();
+	}
+
+	private static String key(String device, int zoom) {
+		return KEY_PREFIX + device + "_" + zoom;
+	}
+
+	/* The values that StepCalibrator determines. */
+	public static class Profile {
+		public final Point backlash;	//in steps
+		public final Point xStep, yStep;	//pixels per step
+
+		public Profile(Point b, Point x, Point y) {
+			backlash = b;
+			xStep = x;
+			yStep = y;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * Default FovTracker backend. The sample region of the current frame is used as a template,
+ * and its position in the last frame is found by normalized cross-correlation.
+ */
+public class CrossCorrelationEstimator implements MotionEstimator {
+	private final Mat template, corr;
+	private double confidence;
+	private boolean subPixel;
+
+	public CrossCorrelationEstimator() {
+		template = new Mat();
+		corr = new Mat();
+	}
+
+	public boolean estimate(Mat last, Mat curr, Rect roi, Point result) {
+		Mat sample = curr.submat(roi);
+		sample.copyTo(template);
+		sample.release();
+		Imgproc.matchTemplate(last, template, corr, Imgproc.TM_CCORR_NORMED);
+		Core.MinMaxLocResult minMax = Core.minMaxLoc(corr);
+		//A flat correlation has no peak, which will happen on the first several frames
+		if (minMax.maxVal == minMax.minVal) {
+			confidence = 0;
+			return false;
+		}
+		confidence = minMax.maxVal;
+		MathUtils.set(result, minMax.maxLoc);
+		if (subPixel)
+			MathUtils.refinePeak(corr, result);
+		MathUtils.subtract(result, roi.x, roi.y);
+		return true;
+	}
+
+	public double getConfidence() {
+		return confidence;
+	}
+
+	/* Off by default, which reports whole pixel translations. */
+	public void setSubPixel(boolean b) {
+		subPixel = b;
+	}
+}
@@ -0,0 +1,181 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * Applies TrackedField's grayscale normalization as a single lookup table pass.
+ * Every step of the normalization (min-max stretch, mean subtraction, histogram equalization)
+ * maps each gray level to a new gray level using only global statistics, so the whole chain
+ * can be worked out from the grayscale histogram and collapsed into one 256-entry table.
+ * The table is rebuilt every refreshInterval frames; in between, the last table is reused.
+ */
+public class FieldNormalizer {
+	private final Mat lut;
+	private final byte[] table;
+	private final int[] map;		//Gray level each original level is currently mapped to
+	private final double[] hist;	//Histogram of the current mapped image
+	private final Mat histMat, histMask;
+	private final List<Mat> histImages;
+	private final MatOfInt histChannels, histSize;
+	private final MatOfFloat histRanges;
+	private int refreshInterval, framesUntilRefresh;
+
+	private static final int LEVELS = 256;
+	public static final int DEFAULT_REFRESH_INTERVAL = 10;
+
+	public FieldNormalizer() {
+		lut = new Mat(1, LEVELS, CvType.CV_8UC1);
+		table = new byte[LEVELS];
+		map = new int[LEVELS];
+		hist = new double[LEVELS];
+		histMat = new Mat();
+		histMask = new Mat();
+		histImages = new ArrayList<Mat>(1);
+		histChannels = new MatOfInt(0);
+		histSize = new MatOfInt(LEVELS);
+		histRanges = new MatOfFloat(0, LEVELS);
+		refreshInterval = DEFAULT_REFRESH_INTERVAL;
+		framesUntilRefresh = 0;
+	}
+
+	/* Rebuild the table every i frames. 1 rebuilds it on every frame. */
+	public void setRefreshInterval(int i) {
+		refreshInterval = i < 1 ? 1 : i;
+	}
+
+	/* Rebuild the table on the next frame. */
+	public void invalidate() {
+		framesUntilRefresh = 0;
+	}
+
+	/* True if the next call to normalize() will rebuild the table from the whole frame. */
+	public boolean refreshDue() {
+		return framesUntilRefresh <= 0;
+	}
+
+	/* Convert src (color) into gray (single channel, same size) and normalize it.
+	 * If region is not null and no refresh is due, only that part of gray is written.
+	 */
+	public void normalize(Mat src, Mat gray, Rect region) {
+		if (refreshDue() || region == null) {
+			Imgproc.cvtColor(src, gray, Imgproc.COLOR_BGR2GRAY);
+			if (refreshDue()) {
+				rebuild(gray);
+				framesUntilRefresh = refreshInterval;
+			}
+			framesUntilRefresh --;
+			Core.LUT(gray, lut, gray);
+		} else {
+			framesUntilRefresh --;
+			Mat srcRegion = src.submat(region);
+			Mat grayRegion = gray.submat(region);
+			Imgproc.cvtColor(srcRegion, grayRegion, Imgproc.COLOR_BGR2GRAY);
+			Core.LUT(grayRegion, lut, grayRegion);
+			srcRegion.release();
+			grayRegion.release();
+		}
+	}
+
+	private void rebuild(Mat gray) {
+		histImages.clear();
+		histImages.add(gray);
+		Imgproc.calcHist(histImages, histChannels, histMask, histMat, histSize, histRanges);
+		for (int i = 0; i < LEVELS; i ++) {
+			hist[i] = histMat.get(i, 0)[0];
+			map[i] = i;
+		}
+		//Same sequence of operations as TrackedField.processImage()
+		stretch();
+		subtractMean();
+		equalize();
+		stretch();
+		subtractMean();
+		stretch();
+		equalize();
+		for (int i = 0; i < LEVELS; i ++)
+			table[i] = (byte)map[i];
+		lut.put(0, 0, table);
+	}
+
+	//Apply a level-to-level mapping to both the table and the histogram.
+	private void remap(int[] step) {
+		double[] moved = new double[LEVELS];
+		for (int i = 0; i < LEVELS; i ++) {
+			map[i] = step[map[i]];
+			moved[step[i]] += hist[i];
+		}
+		System.arraycopy(moved, 0, hist, 0, LEVELS);
+	}
+
+	//Core.normalize(mat, mat, 0, 255, Core.NORM_MINMAX)
+	private void stretch() {
+		int min = 0, max = LEVELS - 1;
+		while (min < LEVELS - 1 && hist[min] == 0)
+			min ++;
+		while (max > 0 && hist[max] == 0)
+			max --;
+		double scale = (max > min) ? (LEVELS - 1.0) / (max - min) : 0;
+		double shift = (max > min) ? -min * scale : 0;
+		int[] step = new int[LEVELS];
+		for (int i = 0; i < LEVELS; i ++)
+			step[i] = saturate(Math.rint(i * scale + shift));
+		remap(step);
+	}
+
+	//Core.subtract(mat, new Scalar(sum / countNonZero), mat)
+	private void subtractMean() {
+		double sum = 0, count = 0;
+		for (int i = 1; i < LEVELS; i ++) {
+			sum += hist[i] * i;
+			count += hist[i];
+		}
+		if (count == 0)
+			return;
+		int mean = saturate(Math.rint(sum / count));
+		int[] step = new int[LEVELS];
+		for (int i = 0; i < LEVELS; i ++)
+			step[i] = saturate(i - mean);
+		remap(step);
+	}
+
+	//Imgproc.equalizeHist(mat, mat)
+	private void equalize() {
+		double total = 0;
+		for (int i = 0; i < LEVELS; i ++)
+			total += hist[i];
+		int first = 0;
+		while (first < LEVELS - 1 && hist[first] == 0)
+			first ++;
+		int[] step = new int[LEVELS];
+		if (hist[first] == total) {
+			for (int i = 0; i < LEVELS; i ++)
+				step[i] = first;
+		} else {
+			double scale = (LEVELS - 1.0) / (total - hist[first]);
+			double sum = 0;
+			step[first] = 0;
+			for (int i = first + 1; i < LEVELS; i ++) {
+				sum += hist[i];
+				step[i] = saturate(Math.rint(sum * scale));
+			}
+		}
+		remap(step);
+	}
+
+	private static int saturate(double d) {
+		if (d < 0)
+			return 0;
+		if (d > LEVELS - 1)
+			return LEVELS - 1;
+		return (int)d;
+	}
+}
@@ -0,0 +1,101 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+/*
+ * Compares focus metrics on recorded z-stacks.
+ * A z-stack is a directory of images taken at evenly spaced Z positions, in file name order.
+ * For each metric, reports the time taken per frame and how sharply its scores peak:
+ * the ratio of the highest score to the lowest, and the number of slices that score above halfway between them.
+ * A good metric for Autofocus has a high ratio and a narrow peak, and finds the same slice as the others.
+ */
+public class FocusBenchmark {
+
+	public static class Result {
+		public final String metric;
+		public final double millisPerFrame;
+		public final int peak; //Index of the highest scoring slice
+		public final double peakRatio; //Highest score divided by the lowest
+		public final int halfWidth; //Consecutive slices around the peak that score above halfway between the lowest and highest
+
+		Result(String m, double time, int p, double ratio, int width) {
+			metric = m;
+			millisPerFrame = time;
+			peak = p;
+			peakRatio = ratio;
+			halfWidth = width;
+		}
+
+		public String toString() {
+			return metric + ": " + String.format("%.2f", millisPerFrame) + " ms/frame, peak at slice " + peak
+					+ ", peak ratio " + String.format("%.2f", peakRatio) + ", half width " + halfWidth + " slices";
+		}
+	}
+
+	/* Load the images in dir, sorted by file name. */
+	public static List<Mat> loadStack(File dir) {
+		List<Mat> stack = new ArrayList<Mat>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			return stack;
+		Arrays.sort(files);
+		for (File f: files) {
+			Mat img = Highgui.imread(f.getPath());
+			if (!img.empty())
+				stack.add(img);
+		}
+		return stack;
+	}
+
+	public static Result run(FocusMetric metric, List<Mat> stack) {
+		int n = stack.size();
+		double[] scores = new double[n];
+		if (n > 0)
+			metric.score(stack.get(0)); //Allocate buffers before timing
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i ++)
+			scores[i] = metric.score(stack.get(i));
+		double millis = (System.nanoTime() - start) / 1e6 / Math.max(n, 1);
+
+		int peak = 0, low = 0;
+		for (int i = 1; i < n; i ++) {
+			if (scores[i] > scores[peak])
+				peak = i;
+			if (scores[i] < scores[low])
+				low = i;
+		}
+		if (n == 0)
+			return new Result(metric.getName(), millis, -1, 0, 0);
+		double ratio = scores[low] > 0 ? scores[peak] / scores[low] : Double.POSITIVE_INFINITY;
+		double half = (scores[peak] + scores[low]) / 2;
+		int width = 1;
+		for (int i = peak - 1; i >= 0 && scores[i] > half; i --)
+			width ++;
+		for (int i = peak + 1; i < n && scores[i] > half; i ++)
+			width ++;
+		return new Result(metric.getName(), millis, peak, ratio, width);
+	}
+
+	/* Run every metric in FocusMetrics on each z-stack directory, and print the results. */
+	public static List<Result> runAll(File... stacks) {
+		List<Result> results = new ArrayList<Result>();
+		for (File dir: stacks) {
+			List<Mat> stack = loadStack(dir);
+			System.out.println(dir + ": " + stack.size() + " slices");
+			for (FocusMetric metric: FocusMetrics.all()) {
+				Result r = run(metric, stack);
+				System.out.println("  " + r);
+				results.add(r);
+			}
+			for (Mat m: stack)
+				m.release();
+		}
+		return results;
+	}
+}
@@ -0,0 +1,110 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Sparse record of the best Z position found at each stage (x, y) position, in motor steps.
+ * Filled by Autofocus after every successful run, and used to seed the next run near a known focus.
+ * Entries are bucketed into square cells; a new entry replaces any other in the same cell,
+ * so revisiting a location updates it instead of growing the map.
+ * Estimates are an inverse-distance weighted average of the entries within the search radius.
+ */
+public class FocusMap {
+	private final int cellSize;
+	private final double radius;
+	private final Map<Long, Entry> cells;
+	private final List<Entry> nearby;
+
+	public static final int DEFAULT_CELL_SIZE = 32;
+	public static final double DEFAULT_RADIUS = 256;
+
+	public FocusMap() {
+		this(DEFAULT_CELL_SIZE, DEFAULT_RADIUS);
+	}
+
+	/* cellSize and r are in steps. Only entries within r of a position are used to estimate its focus. */
+	public FocusMap(int size, double r) {
+		cellSize = size;
+		radius = r;
+		cells = new HashMap<Long, Entry>();
+		nearby = new ArrayList<Entry>();
+	}
+
+	public synchronized void add(int x, int y, int z) {
+		cells.put(key(cell(x), cell(y)), new Entry(x, y, z));
+	}
+
+	/* Interpolated Z at (x, y), or NaN if there are no entries within range. */
+	public synchronized double estimate(int x, int y) {
+		findNearby(x, y);
+		if (nearby.isEmpty())
+			return Double.NaN;
+		double total = 0, weights = 0;
+		for (Entry e: nearby) {
+			double dx = e.x - x, dy = e.y - y;
+			double distSqr = dx * dx + dy * dy;
+			if (distSqr == 0)
+				return e.z;
+			double w = 1 / distSqr;
+			total += w * e.z;
+			weights += w;
+		}
+		return total / weights;
+	}
+
+	/* Distance from (x, y) to the closest entry, or infinity if there are none within range. */
+	public synchronized double nearestDistance(int x, int y) {
+		findNearby(x, y);
+		double best = Double.POSITIVE_INFINITY;
+		for (Entry e: nearby)
+			best = Math.min(best, Math.hypot(e.x - x, e.y - y));
+		return best;
+	}
+
+	public synchronized int size() {
+		return cells.size();
+	}
+
+	public synchronized void clear() {
+		cells.clear();
+	}
+
+	//Collect the entries within radius of (x, y) into nearby.
+	private void findNearby(int x, int y) {
+		nearby.clear();
+		int reach = (int)Math.ceil(radius / cellSize);
+		int cx = cell(x), cy = cell(y);
+		double r2 = radius * radius;
+		for (int i = cx - reach; i <= cx + reach; i ++) {
+			for (int j = cy - reach; j <= cy + reach; j ++) {
+				Entry e = cells.get(key(i, j));
+				if (e == null)
+					continue;
+				double dx = e.x - x, dy = e.y - y;
+				if (dx * dx + dy * dy <= r2)
+					nearby.add(e);
+			}
+		}
+	}
+
+	private int cell(int v) {
+		return (int)Math.floor((double)v / cellSize);
+	}
+
+	private static long key(int cx, int cy) {
+		return ((long)cx << 32) | (cy & 0xffffffffL);
+	}
+
+	private static class Entry {
+		final int x, y, z;
+
+		Entry(int px, int py, int pz) {
+			x = px;
+			y = py;
+			z = pz;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import org.opencv.core.Mat;
+
+/*
+ * Scores how well focused a camera frame is, for Autofocus. Implementations are in FocusMetrics.
+ */
+public interface FocusMetric {
+	/* Higher scores are sharper. Scores are only comparable between frames scored by the same metric.
+	 * img is not modified.
+	 */
+	public double score(Mat img);
+
+	public String getName();
+}
@@ -0,0 +1,170 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * Focus metrics for Autofocus. Each one is computed on a grayscale copy of a region in the center of the frame,
+ * which can optionally be downscaled first. Shrinking the region or the scale makes scoring cheaper,
+ * at the cost of ignoring detail outside the region or finer than the scale.
+ *
+ * None of these are thread safe; each keeps buffers that are reused between frames.
+ */
+public class FocusMetrics {
+
+	/* Every metric in this class, with default settings. */
+	public static FocusMetric[] all() {
+		return new FocusMetric[]{new EdgeCount(), new LaplacianVariance(), new Tenengrad(),
+				new NormalizedVariance(), new Brenner()};
+	}
+
+	/* Handles the region, scaling and grayscale conversion shared by every metric. */
+	public static abstract class RegionMetric implements FocusMetric {
+		private double region, scale;
+		private final Rect roi;
+		private final Size scaled;
+		private final Mat small, gray;
+
+		protected RegionMetric() {
+			region = 1;
+			scale = 1;
+			roi = new Rect();
+			scaled = new Size();
+			small = new Mat();
+			gray = new Mat();
+		}
+
+		/* Only score a centered region, with sides this fraction of the frame's. 1 scores the whole frame. */
+		public RegionMetric setRegion(double r) {
+			region = r;
+			return this;
+		}
+
+		/* Downscale the region by this factor before scoring. 1 scores it at full resolution. */
+		public RegionMetric setScale(double s) {
+			scale = s;
+			return this;
+		}
+
+		public double score(Mat img) {
+			roi.width = (int)(img.cols() * region);
+			roi.height = (int)(img.rows() * region);
+			roi.x = (img.cols() - roi.width) / 2;
+			roi.y = (img.rows() - roi.height) / 2;
+			Mat area = img.submat(roi);
+			Mat src = area;
+			if (scale != 1) {
+				scaled.width = (int)(roi.width * scale);
+				scaled.height = (int)(roi.height * scale);
+				Imgproc.resize(area, small, scaled, 0, 0, Imgproc.INTER_AREA);
+				src = small;
+			}
+			if (src.channels() == 1)
+				src.copyTo(gray);
+			else
+				Imgproc.cvtColor(src, gray, Imgproc.COLOR_BGR2GRAY);
+			area.release();
+			return measure(gray);
+		}
+
+		/* Score a grayscale CV_8UC1 image. gray may be modified. */
+		protected abstract double measure(Mat gray);
+	}
+
+	/* Number of pixels on Canny edges. This is the metric Autofocus has always used, with the same fixed thresholds. */
+	public static class EdgeCount extends RegionMetric {
+		private static final double EDGE_THRESHOLD_RATIO = 1.5;
+		private static final double EDGE_LOWER_THRESHOLD = 64;
+		private static final Size BLUR = new Size(3, 3);
+
+		protected double measure(Mat gray) {
+			Imgproc.blur(gray, gray, BLUR);
+			Imgproc.Canny(gray, gray, EDGE_LOWER_THRESHOLD, EDGE_LOWER_THRESHOLD * EDGE_THRESHOLD_RATIO);
+			return Core.countNonZero(gray);
+		}
+
+		public String getName() {
+			return "edge count";
+		}
+	}
+
+	/* Variance of the Laplacian. Responds to fine detail, and has no thresholds to tune. */
+	public static class LaplacianVariance extends RegionMetric {
+		private final Mat laplacian = new Mat();
+		private final MatOfDouble mean = new MatOfDouble(), stddev = new MatOfDouble();
+
+		protected double measure(Mat gray) {
+			Imgproc.Laplacian(gray, laplacian, CvType.CV_32F);
+			Core.meanStdDev(laplacian, mean, stddev);
+			double s = stddev.toArray()[0];
+			return s * s;
+		}
+
+		public String getName() {
+			return "laplacian variance";
+		}
+	}
+
+	/* Tenengrad: mean squared magnitude of the Sobel gradient. */
+	public static class Tenengrad extends RegionMetric {
+		private final Mat gx = new Mat(), gy = new Mat();
+
+		protected double measure(Mat gray) {
+			Imgproc.Sobel(gray, gx, CvType.CV_32F, 1, 0);
+			Imgproc.Sobel(gray, gy, CvType.CV_32F, 0, 1);
+			Core.multiply(gx, gx, gx);
+			Core.multiply(gy, gy, gy);
+			Core.add(gx, gy, gx);
+			return Core.mean(gx).val[0];
+		}
+
+		public String getName() {
+			return "tenengrad";
+		}
+	}
+
+	/* Variance of the intensity divided by its mean, which cancels out changes in illumination. */
+	public static class NormalizedVariance extends RegionMetric {
+		private final MatOfDouble mean = new MatOfDouble(), stddev = new MatOfDouble();
+
+		protected double measure(Mat gray) {
+			Core.meanStdDev(gray, mean, stddev);
+			double m = mean.toArray()[0];
+			if (m == 0)
+				return 0;
+			double s = stddev.toArray()[0];
+			return s * s / m;
+		}
+
+		public String getName() {
+			return "normalized variance";
+		}
+	}
+
+	/* Brenner gradient: mean squared difference between pixels two columns apart. Cheap, and sharply peaked. */
+	public static class Brenner extends RegionMetric {
+		private final Mat image = new Mat(), difference = new Mat();
+
+		protected double measure(Mat gray) {
+			if (gray.cols() < 3)
+				return 0;
+			gray.convertTo(image, CvType.CV_32F);
+			Mat right = image.colRange(2, image.cols());
+			Mat left = image.colRange(0, image.cols() - 2);
+			Core.subtract(right, left, difference);
+			right.release();
+			left.release();
+			Core.multiply(difference, difference, difference);
+			return Core.mean(difference).val[0];
+		}
+
+		public String getName() {
+			return "brenner";
+		}
+	}
+}
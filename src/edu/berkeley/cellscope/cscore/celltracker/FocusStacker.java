@@ -0,0 +1,104 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/*
+ * Fuses a z-stack into one image that is in focus everywhere (extended depth of field).
+ * The image is divided into square tiles, and each tile of the result is copied from the slice
+ * where that tile scored highest under a FocusMetric.
+ * Slices are fused as they are added, so only the result and the best score of each tile are kept,
+ * never the whole stack.
+ */
+public class FocusStacker {
+	private final FocusMetric metric;
+	private final int tileSize;
+	private Mat fused;
+	private int columns, rows;
+	private double[] bestScores;
+	private int[] bestSlices; //Index of the slice each tile was taken from
+	private int slices;
+	private final Rect tile;
+
+	public static final int DEFAULT_TILE_SIZE = 32;
+
+	public FocusStacker() {
+		this(new FocusMetrics.LaplacianVariance(), DEFAULT_TILE_SIZE);
+	}
+
+	public FocusStacker(FocusMetric m, int size) {
+		metric = m;
+		tileSize = size;
+		fused = new Mat();
+		tile = new Rect();
+	}
+
+	/* Fuse the next slice into the result. Every slice must be the same size. slice is not kept or modified. */
+	public void addSlice(Mat slice) {
+		if (slices == 0) {
+			columns = (slice.cols() + tileSize - 1) / tileSize;
+			rows = (slice.rows() + tileSize - 1) / tileSize;
+			bestScores = new double[columns * rows];
+			bestSlices = new int[columns * rows];
+			slice.copyTo(fused);
+		}
+		for (int r = 0; r < rows; r ++) {
+			for (int c = 0; c < columns; c ++) {
+				setTile(slice, c, r);
+				Mat src = slice.submat(tile);
+				double score = metric.score(src);
+				int i = r * columns + c;
+				if (slices == 0 || score > bestScores[i]) {
+					bestScores[i] = score;
+					bestSlices[i] = slices;
+					if (slices != 0) {
+						Mat dst = fused.submat(tile);
+						src.copyTo(dst);
+						dst.release();
+					}
+				}
+				src.release();
+			}
+		}
+		slices ++;
+	}
+
+	//Tiles on the right and bottom edges are cut short to fit the image.
+	private void setTile(Mat img, int c, int r) {
+		tile.x = c * tileSize;
+		tile.y = r * tileSize;
+		tile.width = Math.min(tileSize, img.cols() - tile.x);
+		tile.height = Math.min(tileSize, img.rows() - tile.y);
+	}
+
+	/* The fused image so far. It is updated in place by addSlice(). */
+	public Mat getResult() {
+		return fused;
+	}
+
+	public int getSliceCount() {
+		return slices;
+	}
+
+	public int getTileColumns() {
+		return columns;
+	}
+
+	public int getTileRows() {
+		return rows;
+	}
+
+	/* Index of the slice that tile (c, r) of the result was taken from, which gives a coarse depth map. */
+	public int getSliceIndex(int c, int r) {
+		return bestSlices[r * columns + c];
+	}
+
+	/* Start over with an empty stack. */
+	public void reset() {
+		slices = 0;
+	}
+
+	public void release() {
+		fused.release();
+	}
+}
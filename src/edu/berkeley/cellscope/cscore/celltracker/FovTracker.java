@@ -1,9 +1,11 @@
 package edu.berkeley.cellscope.cscore.celltracker;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
@@ -16,38 +18,53 @@ import org.opencv.imgproc.Imgproc;
 /**
  * When enabled, will asynchronously calculate how much the contents of the screen move by.
  * This is done by sampling a small area on the screen and cross correlating its position several
- * frames later.
+ * frames later. A phase correlation backend, which compares whole frames, or a backend that tracks many
+ * automatically chosen patches, can be chosen with setBackend().
+ * Frames are handed to the calculation thread through a single slot, so the camera thread never waits on a
+ * calculation; frames that arrive while a calculation runs replace each other, and only the newest is used.
+ * Each result carries the sequence number and capture time of its frame, and is delivered on a separate callback thread.
  * Note that if the screen moves too quickly and the sampled region moves off the field of view
  * before cross correlation can be run, the result will be false. Motion blur will also introduce error.
  * If the sample area being tracked lacks features, cross correlation will likely produce an invalid
  * result. It is advisable to 
  */
 public class FovTracker implements RealtimeImageProcessor {
-	private Mat currImg, lastImg;
+	private FrameExchange frames; //Single slot between the camera thread and the calculation thread
 	private int width, height;
 	
 	private Rect roi; //area in center of screen used as cross-correlation template
 	private Point roiCorner1, roiCorner2; //defines corners of Rect roi
 	private Point translation; //gives the position of the current frame, relative to the last frame
 	private Point panCorner1, panCorner2;
-	private Point result;
-	private boolean busy;
+	private Point result; //Passed to MotionCallbacks, only used on the callback thread
 	private boolean tracking, paused;
 	private int waitDuration;
 	private int wait;
 
+	private MotionEstimator estimator;
+	private boolean subPixel, subPixelSet; //Once set, applied to every estimator, whatever its own default
+	private double confidence;
+
 	private PositionCalculation calculation;
 	private ExecutorService calcThread; //Calculations are executed in this thread.
+	private ExecutorService callbackThread; //Results are delivered to callbacks on this thread.
+	private final AtomicBoolean queued = new AtomicBoolean(); //True while a calculation is waiting to run
+	private int startSequence, resumeSequence; //Sequence number of the last frame before start() and resume()
 	
 	protected int frameCounter;
-	protected boolean firstFrame;
 	
 	private List<MotionCallback> callbacks;
+	private List<TimedMotionCallback> timedCallbacks;
 	
 	protected static final int TRACK_INTERVAL = 1; //Minimum number of frames between every update
 	//A larger sample size will give greater accuracy for slow pans, but cannot detect fast pans
 	private static final double SAMPLE_SIZE = 0.2;
 	private static final int WAIT_AFTER_PAUSE = 2; //After resuming from pause, wait this many frames for the camera preview to catch up.
+	private static final long STOP_TIMEOUT = 1000; //Milliseconds stop() waits for a calculation in progress to finish
+
+	public static final int BACKEND_CROSS_CORRELATION = 0; //Locate the sample region in the last frame (default)
+	public static final int BACKEND_PHASE_CORRELATION = 1; //Phase correlate whole downsampled frames
+	public static final int BACKEND_PATCHES = 2; //Track many high-texture patches and fit their motion with RANSAC
 	
 	public FovTracker(int w, int h, Rect r) {
 		init(w, h, r);
@@ -61,8 +78,7 @@ public class FovTracker implements RealtimeImageProcessor {
 	}
 	
 	private void init(int w, int h, Rect r) {
-    	currImg = new Mat();
-    	lastImg = new Mat();
+    	frames = new FrameExchange();
         width = w;
         height = h;
         roi = r;
@@ -73,14 +89,52 @@ public class FovTracker implements RealtimeImageProcessor {
         panCorner1 = new Point();
         panCorner2 = new Point();
         waitDuration = WAIT_AFTER_PAUSE;
+        setMotionEstimator(new CrossCorrelationEstimator());
         calculation = new PositionCalculation();
-        callbacks = new ArrayList<MotionCallback>();
+        callbacks = new CopyOnWriteArrayList<MotionCallback>();
+        timedCallbacks = new CopyOnWriteArrayList<TimedMotionCallback>();
 	}
 	
 	public void setPause(int i) {
 		waitDuration = i;
 	}
 	
+	/* Choose how motion is estimated. Takes effect on the next calculation. */
+	public void setBackend(int backend) {
+		if (backend == BACKEND_PHASE_CORRELATION)
+			setMotionEstimator(new PhaseCorrelationEstimator());
+		else if (backend == BACKEND_PATCHES)
+			setMotionEstimator(new PatchRansacEstimator());
+		else
+			setMotionEstimator(new CrossCorrelationEstimator());
+	}
+
+	/* If setSubPixel() has been called, its setting is applied to e. Otherwise e keeps its own default. */
+	public synchronized void setMotionEstimator(MotionEstimator e) {
+		estimator = e;
+		if (subPixelSet)
+			estimator.setSubPixel(subPixel);
+	}
+
+	/* Refine results to sub-pixel accuracy, and keep doing so when the backend changes.
+	 * Until this is called, each backend uses its own default: off for cross correlation and patches,
+	 * on for phase correlation, which would otherwise only resolve motion to its downsampling factor.
+	 */
+	public synchronized void setSubPixel(boolean b) {
+		subPixel = b;
+		subPixelSet = true;
+		estimator.setSubPixel(b);
+	}
+
+	public synchronized MotionEstimator getMotionEstimator() {
+		return estimator;
+	}
+
+	/* Confidence of the most recent result, from 0 to 1, as reported by the motion estimator. */
+	public synchronized double getConfidence() {
+		return confidence;
+	}
+
 	public boolean isRunning() {
 		return tracking;
 	}
@@ -103,9 +157,12 @@ public class FovTracker implements RealtimeImageProcessor {
 		MathUtils.set(translation, 0, 0);
 		tracking = true;
 		paused = false;
-		firstFrame = true;
 		frameCounter = TRACK_INTERVAL;
+		//Frames published by an earlier run are ignored
+		startSequence = resumeSequence = frames.getPublishedCount();
+		calculation.reset();
         calcThread = Executors.newSingleThreadExecutor();
+        callbackThread = Executors.newSingleThreadExecutor();
 	}
 	
 	public void pause() {
@@ -119,58 +176,76 @@ public class FovTracker implements RealtimeImageProcessor {
 		synchronized(this) {
 			paused = false;
 			wait = waitDuration;
+			//Results for frames captured before resuming are not delivered
+			resumeSequence = frames.getPublishedCount();
 		}
 	}
 	
+	/* Waits for any calculation in progress to finish, so that a start() right after cannot run alongside it.
+	 * Safe to call from a callback, since results are delivered on a different thread than calculations.
+	 */
 	public void stop() {
+		ExecutorService finishing;
 		synchronized(this) {
 			System.out.println("stopped");
 			tracking = false;
+			finishing = calcThread;
 			if (calcThread != null)
 				calcThread.shutdown();
 			calcThread = null;
+			if (callbackThread != null)
+				callbackThread.shutdown();
+			callbackThread = null;
+		}
+		//The calculation takes the lock to deliver its result, so it must be awaited outside of it
+		if (finishing == null)
+			return;
+		try {
+			if (!finishing.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS))
+				System.out.println("tracker calculation did not finish");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 	
+	/* Hands the frame to the calculation thread without waiting for it.
+	 * If a calculation is already running, the frame waits in a single slot,
+	 * replacing any frame that was waiting before it.
+	 */
 	public void processFrame(Mat mRgba) {
 		synchronized(this) {
 			if (!tracking || paused)
 				return;
 			if (wait > 0) {
 				wait --;
-	    	//	currImg.copyTo(lastImg);
 				return;
 			}
 			frameCounter ++;
-	        if (frameCounter >= TRACK_INTERVAL) {
-	        	frameCounter = 0;
-				updateCurrentFrame(mRgba);
-		        if (firstFrame) {
-		        	firstFrame = false;
-	        		currImg.copyTo(lastImg);
-		        }
-		        if (!isBusy()){
-		        	//calculation.run();
-		        	setBusy(true);
-		    		calcThread.execute(calculation);
-		        }
-	        }
+	        if (frameCounter < TRACK_INTERVAL)
+	        	return;
+	        frameCounter = 0;
+		}
+		updateCurrentFrame(mRgba);
+		synchronized(this) {
+			if (tracking && queued.compareAndSet(false, true))
+				calcThread.execute(calculation);
 		}
 	}
 	
 	public void updateCurrentFrame(Mat mRgba) {
-		synchronized(this) {
-			mRgba.copyTo(currImg);
-		}
+		frames.publish(mRgba);
 	}
 	
-	public synchronized boolean isBusy() {
-		return busy;
-		//return queuedCalcs == CALC_CAP;
+	/* Sequence number of the most recent frame passed to processFrame(). Frames are numbered from 1.
+	 * A result with a greater sequence number was captured after that frame.
+	 */
+	public int getFrameSequence() {
+		return frames.getPublishedCount();
 	}
 	
-	public synchronized void setBusy(boolean b) {
-		busy = b;
+	/* True if a calculation is queued or running. */
+	public boolean isBusy() {
+		return queued.get() || calculation.running;
 	}
 	
 	public void addCallback(MotionCallback c) {
@@ -180,47 +255,139 @@ public class FovTracker implements RealtimeImageProcessor {
 	public void removecallback(MotionCallback c) {
 		callbacks.remove(c);
 	}
+	
+	/* Results passed to these callbacks include the frame's sequence number and capture time. */
+	public void addCallback(TimedMotionCallback c) {
+		timedCallbacks.add(c);
+	}
+	
+	public void removeCallback(TimedMotionCallback c) {
+		timedCallbacks.remove(c);
+	}
 
 	private class PositionCalculation implements Runnable {
-		Mat curr, last, template;
+		Mat last;
+		Point estimate;
+		boolean hasLast;
+		volatile boolean running;
 		
 		public PositionCalculation() {
-			curr = new Mat();
 			last = new Mat();
-			template = new Mat();
+			estimate = new Point();
+		}
+		
+		void reset() {
+			hasLast = false;
 		}
 		
 		public void run() {
+			running = true;
+			//Clear the slot first, so a frame published from here on schedules another calculation
+			queued.set(false);
+			try {
+				calculate();
+			} finally {
+				running = false;
+			}
+		}
+		
+		private void calculate() {
+			MotionEstimator e;
+			Mat curr = frames.take();
+			if (curr == null)
+				return;
+			int sequence = frames.getFrameSequence();
+			long captureTime = frames.getFrameTime();
+			synchronized (FovTracker.this) {
+				if (sequence <= startSequence)
+					return;
+				e = estimator;
+			}
 			//Compare the newest frame to the frame when the last calculation was run.
+			if (!hasLast) {
+				curr.copyTo(last);
+				hasLast = true;
+			}
+			boolean found = e.estimate(last, curr, roi, estimate);
+			curr.copyTo(last);
+			if (!found)
+				MathUtils.set(estimate, 0, 0);
+			MotionResult r = new MotionResult(estimate, found, e.getConfidence(), sequence, captureTime);
+			synchronized (FovTracker.this) {
+				confidence = r.confidence;
+				MathUtils.set(translation, estimate);
+				if (callbackThread != null)
+					callbackThread.execute(new Delivery(r));
+			}
+		}
+	}
+	
+	//Passes a result to the callbacks on the callback thread.
+	private class Delivery implements Runnable {
+		private final MotionResult r;
+		
+		Delivery(MotionResult result) {
+			r = result;
+		}
+		
+		public void run() {
 			synchronized (FovTracker.this) {
-				currImg.copyTo(curr);
-				lastImg.copyTo(last);
-                currImg.copyTo(lastImg);
+				//Callbacks commonly pause the tracker, so results that were already queued are dropped
+				if (!tracking || paused || r.sequence <= resumeSequence)
+					return;
 			}
-			curr.submat(roi).copyTo(template);
-        	Point location = locate(last, template);
-        	if (location == null)
-        		MathUtils.set(translation, 0, 0);
-        	else {
-	        	MathUtils.set(translation, location);
-	        	MathUtils.subtract(translation, roiCorner1);
-	        	setBusy(false);
-	    	//	updateCalcQueueCount(-1);
-        	}
-        	for (MotionCallback c: callbacks)
-        		c.motionResult(MathUtils.set(result, translation));
+			for (MotionCallback c: callbacks)
+				c.motionResult(MathUtils.set(result, r.translation));
+			for (TimedMotionCallback c: timedCallbacks)
+				c.motionResult(r);
 		}
 	}
 	
 	public interface MotionCallback {
 		public void motionResult(Point result);
 	}
+	
+	public interface TimedMotionCallback {
+		public void motionResult(MotionResult result);
+	}
+	
+	/* The outcome of one calculation. */
+	public static class MotionResult {
+		public final Point translation; //(0, 0) if no motion was found
+		public final boolean found;
+		public final double confidence;
+		public final int sequence; //Sequence number of the newer of the two frames compared
+		public final long captureTime; //Time the newer frame was passed to processFrame(), in millis
+		public final long completeTime; //Time the calculation finished, in millis
+		
+		MotionResult(Point t, boolean f, double c, int seq, long capture) {
+			translation = t.clone();
+			found = f;
+			confidence = c;
+			sequence = seq;
+			captureTime = capture;
+			completeTime = System.currentTimeMillis();
+		}
+		
+		/* Time from the frame being captured to its result being ready, in millis. */
+		public long getLatency() {
+			return completeTime - captureTime;
+		}
+	}
 
 	//Performs cross-correlation on two matrixes.
 	public static Point locate(Mat img, Mat templ) {
 		int result_cols =  img.cols() - templ.cols() + 1;
 		int result_rows = img.rows() - templ.rows() + 1;
-		Mat result = new Mat(result_rows, result_cols, CvType.CV_32FC1);
+		MatPool pool = MatPool.getShared();
+		Mat result = pool.acquire(result_rows, result_cols, CvType.CV_32FC1);
+		Point location = locate(img, templ, result);
+		pool.release(result);
+		return location;
+	}
+
+	//Performs cross-correlation on two matrixes, storing the correlation in result.
+	public static Point locate(Mat img, Mat templ, Mat result) {
 		Imgproc.matchTemplate( img, templ, result, Imgproc.TM_CCORR_NORMED);
 		Core.normalize(result, result, 0, 1, Core.NORM_MINMAX, -1);
 		Core.MinMaxLocResult minMax = Core.minMaxLoc(result);
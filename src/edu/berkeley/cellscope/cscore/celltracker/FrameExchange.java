@@ -0,0 +1,112 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+
+/*
+ * Lock-free triple buffer used to hand camera frames from the camera thread to a processing thread.
+ * The camera thread copies each frame into a free slot with publish(), and the processing thread
+ * picks up the most recently completed frame with take(). Neither thread ever waits on the other,
+ * and a frame is never overwritten while it is being read.
+ *
+ * publish() must only be called from one thread, and take() from one (other) thread.
+ */
+public class FrameExchange {
+	private final Mat[] slots;
+	private final long[] times;		//Time each slot was published, in millis
+	private final int[] sequences;	//Number of each slot's frame, counting from 1
+	private final AtomicInteger ready;	//Index of the newest complete slot, plus FRESH if it has not been taken yet
+	private int back;				//Slot owned by the publishing thread
+	private int front;				//Slot owned by the taking thread
+	private boolean hasFrame;		//False until the first frame is taken
+
+	private final AtomicInteger published, dropped;
+	private int taken, stale;
+	private long lastAge;
+
+	private static final int FRESH = 4;
+	private static final int INDEX = 3;
+
+	public FrameExchange() {
+		slots = new Mat[]{new Mat(), new Mat(), new Mat()};
+		times = new long[3];
+		sequences = new int[3];
+		back = 0;
+		ready = new AtomicInteger(1);
+		front = 2;
+		published = new AtomicInteger();
+		dropped = new AtomicInteger();
+	}
+
+	/* Copy frame into a free slot and make it the newest frame. Called by the camera thread. */
+	public void publish(Mat frame) {
+		frame.copyTo(slots[back]);
+		times[back] = System.currentTimeMillis();
+		sequences[back] = published.get() + 1;
+		int previous = ready.getAndSet(back | FRESH);
+		if ((previous & FRESH) != 0)
+			dropped.incrementAndGet(); //The previous frame was never taken
+		back = previous & INDEX;
+		published.incrementAndGet();
+	}
+
+	/* Return the newest complete frame, or null if no frame has been published since the last call.
+	 * The returned Mat belongs to the caller until the next call to take().
+	 */
+	public Mat take() {
+		if ((ready.get() & FRESH) == 0) {
+			stale ++;
+			return null;
+		}
+		int previous = ready.getAndSet(front);
+		front = previous & INDEX;
+		hasFrame = true;
+		taken ++;
+		lastAge = System.currentTimeMillis() - times[front];
+		return slots[front];
+	}
+
+	/* The frame last returned by take(), or null if none has been taken. */
+	public Mat current() {
+		return hasFrame ? slots[front] : null;
+	}
+
+	/* Time that the frame last returned by take() was published. */
+	public long getFrameTime() {
+		return times[front];
+	}
+
+	/* Sequence number of the frame last returned by take(). Frames are numbered from 1 in the order they were published. */
+	public int getFrameSequence() {
+		return sequences[front];
+	}
+
+	/* How old the frame last returned by take() was when it was taken, in millis. */
+	public long getLastFrameAge() {
+		return lastAge;
+	}
+
+	public int getPublishedCount() {
+		return published.get();
+	}
+
+	//Frames that were replaced by a newer frame before they could be taken
+	public int getDroppedCount() {
+		return dropped.get();
+	}
+
+	public int getTakenCount() {
+		return taken;
+	}
+
+	//Calls to take() that found no new frame
+	public int getStaleCount() {
+		return stale;
+	}
+
+	public void release() {
+		for (Mat m: slots)
+			m.release();
+	}
+}
@@ -0,0 +1,118 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import org.opencv.core.Point;
+
+/*
+ * Constant-velocity Kalman filter used to predict where a TrackedObject will be on the next update.
+ * x and y are filtered independently, each with a [position, velocity] state.
+ * Time is measured in updates, so velocity is in pixels per update.
+ *
+ * Like TrackedObject, measurements are tentative: predict() incorporates a measurement without
+ * committing it, and confirm() keeps the result. miss() advances the filter without a measurement.
+ */
+public class KalmanMotionModel {
+	private final Axis x, y;
+	private final Point prediction;
+	private boolean initialized;
+
+	private static final double PROCESS_NOISE = 1; //Variance of the change in velocity per update, in pixels^2
+	private static final double MEASUREMENT_NOISE = 2; //Variance of a matched position, in pixels^2
+	private static final double INITIAL_VELOCITY_VARIANCE = 100;
+
+	public KalmanMotionModel() {
+		x = new Axis();
+		y = new Axis();
+		prediction = new Point();
+	}
+
+	/* Start the filter at position, moving at velocity pixels per update. */
+	public void reset(Point position, Point velocity) {
+		x.reset(position.x, velocity.x);
+		y.reset(position.y, velocity.y);
+		initialized = true;
+	}
+
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	/* Tentatively correct the filter with measured, and return the position predicted for the next update. */
+	public Point predict(Point measured) {
+		x.correct(measured.x);
+		y.correct(measured.y);
+		return MathUtils.set(prediction, x.tPos + x.tVel, y.tPos + y.tVel);
+	}
+
+	/* Standard deviation of the last prediction along x and y, in pixels. */
+	public double getUncertaintyX() {
+		return Math.sqrt(x.predictedVariance());
+	}
+
+	public double getUncertaintyY() {
+		return Math.sqrt(y.predictedVariance());
+	}
+
+	public void confirm() {
+		x.confirm();
+		y.confirm();
+	}
+
+	/* The object was not found; advance the state one update without a measurement. */
+	public void miss() {
+		x.miss();
+		y.miss();
+	}
+
+	private static class Axis {
+		double pos, vel;			//state
+		double pp, pv, vv;			//covariance
+		double tPos, tVel, tPp, tPv, tVv;	//tentative state and covariance
+
+		void reset(double p, double v) {
+			pos = tPos = p;
+			vel = tVel = v;
+			pp = tPp = MEASUREMENT_NOISE;
+			pv = tPv = 0;
+			vv = tVv = INITIAL_VELOCITY_VARIANCE;
+		}
+
+		void correct(double measured) {
+			//Predict: position advances by velocity
+			double p = pos + vel;
+			double v = vel;
+			double cpp = pp + 2 * pv + vv;
+			double cpv = pv + vv;
+			double cvv = vv + PROCESS_NOISE;
+			//Correct with the measured position
+			double s = cpp + MEASUREMENT_NOISE;
+			double kp = cpp / s;
+			double kv = cpv / s;
+			double residual = measured - p;
+			tPos = p + kp * residual;
+			tVel = v + kv * residual;
+			tPp = (1 - kp) * cpp;
+			tPv = (1 - kp) * cpv;
+			tVv = cvv - kv * cpv;
+		}
+
+		//Variance of the position one update after the tentative state
+		double predictedVariance() {
+			return tPp + 2 * tPv + tVv + PROCESS_NOISE;
+		}
+
+		void confirm() {
+			pos = tPos;
+			vel = tVel;
+			pp = tPp;
+			pv = tPv;
+			vv = tVv;
+		}
+
+		void miss() {
+			pos += vel;
+			pp = pp + 2 * pv + vv;
+			pv = pv + vv;
+			vv = vv + PROCESS_NOISE;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/*
+ * Recycles native Mat buffers so that per-frame processing does not allocate.
+ * Buffers are keyed on their dimensions and type. acquire() hands out a free buffer of
+ * the requested shape, allocating only if none is available, and release() returns it.
+ * The contents of an acquired buffer are undefined.
+ * Once the pool has warmed up, getAllocations() should stop increasing.
+ */
+public class MatPool {
+	private final Map<Long, List<Mat>> free;
+	private int allocations, acquisitions, releases;
+
+	private static final int MAXIMUM_FREE = 8; //Maximum number of free buffers kept for each shape
+
+	private static final MatPool shared = new MatPool();
+
+	public MatPool() {
+		free = new HashMap<Long, List<Mat>>();
+	}
+
+	/* Pool used throughout the tracking code. */
+	public static MatPool getShared() {
+		return shared;
+	}
+
+	private static long key(int rows, int cols, int type) {
+		return ((long)rows << 40) | ((long)cols << 16) | type;
+	}
+
+	public synchronized Mat acquire(int rows, int cols, int type) {
+		acquisitions ++;
+		List<Mat> list = free.get(key(rows, cols, type));
+		if (list != null && !list.isEmpty())
+			return list.remove(list.size() - 1);
+		allocations ++;
+		return new Mat(rows, cols, type);
+	}
+
+	public Mat acquire(Size size, int type) {
+		return acquire((int)size.height, (int)size.width, type);
+	}
+
+	/* Acquire a buffer with the same shape as mat. */
+	public Mat acquire(Mat mat) {
+		return acquire(mat.rows(), mat.cols(), mat.type());
+	}
+
+	/* Return a buffer to the pool. The buffer must not be used again by the caller.
+	 * Submats and empty Mats are not pooled.
+	 */
+	public synchronized void release(Mat mat) {
+		if (mat == null)
+			return;
+		releases ++;
+		if (mat.empty() || mat.isSubmatrix()) {
+			mat.release();
+			return;
+		}
+		long k = key(mat.rows(), mat.cols(), mat.type());
+		List<Mat> list = free.get(k);
+		if (list == null) {
+			list = new ArrayList<Mat>();
+			free.put(k, list);
+		}
+		if (list.size() < MAXIMUM_FREE)
+			list.add(mat);
+		else
+			mat.release();
+	}
+
+	/* Release every free buffer. Buffers still held by callers are unaffected. */
+	public synchronized void clear() {
+		for (List<Mat> list: free.values()) {
+			for (Mat m: list)
+				m.release();
+			list.clear();
+		}
+		free.clear();
+	}
+
+	//Number of buffers that had to be newly allocated
+	public synchronized int getAllocations() {
+		return allocations;
+	}
+
+	public synchronized int getAcquisitions() {
+		return acquisitions;
+	}
+
+	public synchronized int getReleases() {
+		return releases;
+	}
+
+	//Number of buffers currently held by callers
+	public synchronized int getOutstanding() {
+		return acquisitions - releases;
+	}
+
+	public synchronized void resetCounters() {
+		allocations = acquisitions = releases = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "[allocations=" + allocations + ", acquisitions=" + acquisitions + ", releases=" + releases + "]";
+	}
+}
@@ -1,5 +1,6 @@
 package edu.berkeley.cellscope.cscore.celltracker;
 
+import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Size;
@@ -9,6 +10,36 @@ import org.opencv.core.Size;
  */
 public class MathUtils {
 	
+	/* Refine the location of the maximum of a correlation result to sub-pixel accuracy,
+	 * by fitting a parabola through the peak and its neighbors along each axis.
+	 * peak is modified and returned. Peaks on the edge of corr are left unchanged along that axis.
+	 */
+	public static Point refinePeak(Mat corr, Point peak) {
+		int x = (int)peak.x;
+		int y = (int)peak.y;
+		double center = corr.get(y, x)[0];
+		if (x > 0 && x < corr.cols() - 1)
+			peak.x = x + parabolicOffset(corr.get(y, x - 1)[0], center, corr.get(y, x + 1)[0]);
+		if (y > 0 && y < corr.rows() - 1)
+			peak.y = y + parabolicOffset(corr.get(y - 1, x)[0], center, corr.get(y + 1, x)[0]);
+		return peak;
+	}
+	
+	/* Offset, relative to the middle sample, of the vertex of the parabola through three equally spaced samples.
+	 * Clamped to [-0.5, 0.5]. Returns 0 if the middle sample is not a maximum.
+	 */
+	public static double parabolicOffset(double left, double center, double right) {
+		double denominator = left - 2 * center + right;
+		if (denominator >= 0)
+			return 0;
+		double offset = (left - right) / (2 * denominator);
+		if (offset > 0.5)
+			return 0.5;
+		if (offset < -0.5)
+			return -0.5;
+		return offset;
+	}
+	
 	public static Rect set(Rect rect, Point pt, Size s) {
 		rect.x = (int)(pt.x);
 		rect.y = (int)(pt.y);
@@ -79,6 +110,14 @@ public class MathUtils {
 				(int)(width), (int)(height));
 	}
 	
+	public static Rect setCenteredRect(Rect rect, double x, double y, double width, double height) {
+		rect.x = (int)(x - width / 2);
+		rect.y = (int)(y - height / 2);
+		rect.width = (int)(width);
+		rect.height = (int)(height);
+		return rect;
+	}
+	
 	public static Point add(Point pt, double x, double y) {
 		pt.x += x;
 		pt.y += y;
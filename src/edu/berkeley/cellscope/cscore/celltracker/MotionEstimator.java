@@ -0,0 +1,23 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+/*
+ * Estimates how far the contents of the screen moved between two frames, for FovTracker.
+ * The result follows FovTracker's convention: the position in the last frame of the contents
+ * of the sample region in the current frame, relative to the region's top left corner.
+ */
+public interface MotionEstimator {
+	/* Store the translation between last and curr in result.
+	 * roi is FovTracker's sample region. Returns false if no translation could be found.
+	 */
+	public boolean estimate(Mat last, Mat curr, Rect roi, Point result);
+
+	/* Confidence of the last estimate, from 0 (none) to 1. */
+	public double getConfidence();
+
+	/* Enable or disable sub-pixel refinement of the result. */
+	public void setSubPixel(boolean b);
+}
@@ -0,0 +1,133 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import edu.berkeley.cellscope.cscore.cameraui.TouchControl;
+
+/*
+ * Splits a move of (x, y) steps into a schedule of single-axis commands that keeps the stage close to the straight line,
+ * in the manner of Bresenham's line algorithm: the longer axis is cut into segments, and after each segment
+ * the shorter axis catches up by its share. Every command is at most MAX_COMMAND steps.
+ *
+ * The stage executes one command at a time (see SwipePanActivity), so the axes never move concurrently.
+ * Travel time is estimated as a fixed cost per command, for the round trip to the stage, plus a cost per step.
+ * The estimate can be used to compare candidate moves, as MobileTrackedField does.
+ */
+public class MotionPlanner {
+	private int segment;
+	private double stepTime, commandTime;
+
+	public static final int MAX_COMMAND = 127;			//Largest number of steps that fits in one command
+	public static final int DEFAULT_SEGMENT = 32;		//Steps along the longer axis between switches
+	public static final double DEFAULT_STEP_TIME = 8;	//Milliseconds per step
+	public static final double DEFAULT_COMMAND_TIME = 60;	//Milliseconds of overhead per command
+
+	public MotionPlanner() {
+		segment = DEFAULT_SEGMENT;
+		stepTime = DEFAULT_STEP_TIME;
+		commandTime = DEFAULT_COMMAND_TIME;
+	}
+
+	/* Steps along the longer axis between switches to the other axis. Smaller values follow the line more closely, but take more commands. */
+	public void setSegment(int s) {
+		segment = Math.max(1, Math.min(s, MAX_COMMAND));
+	}
+
+	/* Timing used for estimates, in milliseconds. */
+	public void setTiming(double perStep, double perCommand) {
+		stepTime = perStep;
+		commandTime = perCommand;
+	}
+
+	public Plan plan(int x, int y) {
+		int ax = Math.abs(x), ay = Math.abs(y);
+		int major = Math.max(ax, ay), minor = Math.min(ax, ay);
+		boolean xMajor = ax >= ay;
+		int majorDir = xMajor ? (x > 0 ? TouchControl.xPositive : TouchControl.xNegative) : (y > 0 ? TouchControl.yPositive : TouchControl.yNegative);
+		int minorDir = xMajor ? (y > 0 ? TouchControl.yPositive : TouchControl.yNegative) : (x > 0 ? TouchControl.xPositive : TouchControl.xNegative);
+		//A straight move has nothing to interleave, so it only needs to be split to fit the commands
+		int length = minor == 0 ? MAX_COMMAND : segment;
+		int segments = (major + length - 1) / length;
+		Plan p = new Plan(segments * 2);
+		int majorDone = 0, minorDone = 0;
+		for (int i = 1; i <= segments; i ++) {
+			int majorTarget = (int)Math.round((double)major * i / segments);
+			int minorTarget = (int)Math.round((double)minor * i / segments);
+			p.add(majorDir, majorTarget - majorDone);
+			p.add(minorDir, minorTarget - minorDone);
+			majorDone = majorTarget;
+			minorDone = minorTarget;
+		}
+		p.estimatedTime = timeFor(p.steps, p.count);
+		return p;
+	}
+
+	/* Estimated time to move (x, y) steps, in milliseconds, without building the schedule. */
+	public double estimateTime(int x, int y) {
+		int ax = Math.abs(x), ay = Math.abs(y);
+		int major = Math.max(ax, ay), minor = Math.min(ax, ay);
+		if (major == 0)
+			return 0;
+		int commands;
+		if (minor == 0)
+			commands = (major + MAX_COMMAND - 1) / MAX_COMMAND;
+		else {
+			int segments = (major + segment - 1) / segment;
+			commands = segments + Math.min(segments, minor); //The shorter axis skips segments where its share rounds to 0
+		}
+		return timeFor(ax + ay, commands);
+	}
+
+	private double timeFor(int steps, int commands) {
+		return steps * stepTime + commands * commandTime;
+	}
+
+	/* A schedule of single-axis commands. */
+	public static class Plan {
+		private final int[] dirs, lengths;
+		private int count, steps, next;
+		private double estimatedTime;
+
+		private Plan(int capacity) {
+			dirs = new int[capacity];
+			lengths = new int[capacity];
+		}
+
+		private void add(int dir, int n) {
+			if (n <= 0)
+				return;
+			dirs[count] = dir;
+			lengths[count] = n;
+			count ++;
+			steps += n;
+		}
+
+		public int getCommandCount() {
+			return count;
+		}
+
+		public int getDirection(int i) {
+			return dirs[i];
+		}
+
+		public int getSteps(int i) {
+			return lengths[i];
+		}
+
+		public int getTotalSteps() {
+			return steps;
+		}
+
+		/* Milliseconds, using the planner's timing when the plan was made. */
+		public double getEstimatedTime() {
+			return estimatedTime;
+		}
+
+		public boolean hasNext() {
+			return next < count;
+		}
+
+		/* Index of the next command to send, advancing past it. */
+		public int next() {
+			return next ++;
+		}
+	}
+}
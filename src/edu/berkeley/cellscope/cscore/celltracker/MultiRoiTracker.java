@@ -0,0 +1,316 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * Tracks how far the screen moves using several sample regions at once.
+ * Works like a set of FovTrackers, but each frame is converted to grayscale and downscaled only once,
+ * and every region is cross-correlated against the same copy in a single pass, split across a worker pool.
+ * Each result reports the motion of every region, along with their median, which ignores
+ * a minority of regions that matched onto the wrong features.
+ */
+public class MultiRoiTracker implements RealtimeImageProcessor {
+	private final Rect[] rois, scaledRois; //Sample regions, in screen and downscaled coordinates
+	private final double scale;
+	private final Size scaledSize;
+	private Mat currImg, lastImg; //Downscaled grayscale frames
+	private final Mat gray;
+	private final Point[] translations; //Result for each region, or null if it could not be found
+	private final Point combined;
+	private final Point[] panCorner; //Reused for drawing
+	private boolean subPixel;
+	private boolean busy, tracking, paused, firstFrame;
+	private int waitDuration, wait;
+
+	private final Calculation calculation;
+	private ExecutorService calcThread; //Runs each calculation
+	private ExecutorService matchThreads; //Correlates the regions of a calculation in parallel
+	private final List<MultiMotionCallback> callbacks;
+
+	public static final double DEFAULT_SCALE = 0.5;
+	private static final int WAIT_AFTER_PAUSE = 2; //After resuming from pause, wait this many frames for the camera preview to catch up.
+
+	public MultiRoiTracker(Rect[] r) {
+		this(r, DEFAULT_SCALE);
+	}
+
+	/* s is the factor each frame is resized by before correlation. */
+	public MultiRoiTracker(Rect[] r, double s) {
+		rois = r;
+		scale = s;
+		scaledSize = new Size();
+		scaledRois = new Rect[rois.length];
+		translations = new Point[rois.length];
+		for (int i = 0; i < rois.length; i ++) {
+			Rect roi = rois[i];
+			scaledRois[i] = new Rect((int)(roi.x * scale), (int)(roi.y * scale),
+					Math.max(1, (int)(roi.width * scale)), Math.max(1, (int)(roi.height * scale)));
+		}
+		currImg = new Mat();
+		lastImg = new Mat();
+		gray = new Mat();
+		combined = new Point();
+		panCorner = new Point[]{new Point(), new Point()};
+		waitDuration = WAIT_AFTER_PAUSE;
+		calculation = new Calculation();
+		callbacks = new ArrayList<MultiMotionCallback>();
+	}
+
+	/* Four square regions of side size, offset diagonally by spacing from the center of a w by h screen.
+	 * Both are relative to the smaller screen dimension.
+	 */
+	public static Rect[] cornerRois(int w, int h, double size, double spacing) {
+		int dimen = w < h ? w: h;
+		int offset = (int)(dimen * spacing);
+		Size rectSize = new Size((int)(dimen * size), (int)(dimen * size));
+		return new Rect[]{
+				MathUtils.createCenteredRect(new Point(w / 2 - offset, h / 2 - offset), rectSize),
+				MathUtils.createCenteredRect(new Point(w / 2 + offset, h / 2 - offset), rectSize),
+				MathUtils.createCenteredRect(new Point(w / 2 - offset, h / 2 + offset), rectSize),
+				MathUtils.createCenteredRect(new Point(w / 2 + offset, h / 2 + offset), rectSize)};
+	}
+
+	public int getRoiCount() {
+		return rois.length;
+	}
+
+	public Rect getRoi(int i) {
+		return rois[i];
+	}
+
+	public void setPause(int i) {
+		waitDuration = i;
+	}
+
+	/* Refine each region's result to sub-pixel accuracy. Off by default. */
+	public synchronized void setSubPixel(boolean b) {
+		subPixel = b;
+	}
+
+	public boolean isRunning() {
+		return tracking;
+	}
+
+	public synchronized void start() {
+		for (int i = 0; i < translations.length; i ++)
+			translations[i] = null;
+		MathUtils.set(combined, 0, 0);
+		tracking = true;
+		paused = false;
+		busy = false;
+		firstFrame = true;
+		calcThread = Executors.newSingleThreadExecutor();
+		int threads = Math.min(rois.length, Runtime.getRuntime().availableProcessors());
+		if (threads > 1)
+			matchThreads = Executors.newFixedThreadPool(threads);
+	}
+
+	public synchronized void stop() {
+		tracking = false;
+		if (calcThread != null)
+			calcThread.shutdown();
+		calcThread = null;
+		if (matchThreads != null)
+			matchThreads.shutdown();
+		matchThreads = null;
+	}
+
+	public synchronized void pause() {
+		paused = true;
+	}
+
+	public synchronized void resume() {
+		paused = false;
+		wait = waitDuration;
+	}
+
+	public void continueRunning() {
+		resume();
+	}
+
+	public void processFrame(Mat mRgba) {
+		synchronized(this) {
+			if (!tracking || paused)
+				return;
+			if (wait > 0) {
+				wait --;
+				return;
+			}
+			//The single copy of the frame shared by every region
+			scaledSize.width = (int)(mRgba.cols() * scale);
+			scaledSize.height = (int)(mRgba.rows() * scale);
+			Imgproc.resize(mRgba, gray, scaledSize, 0, 0, Imgproc.INTER_AREA);
+			Imgproc.cvtColor(gray, currImg, Imgproc.COLOR_BGR2GRAY);
+			if (firstFrame) {
+				firstFrame = false;
+				currImg.copyTo(lastImg);
+			}
+			if (!busy) {
+				busy = true;
+				calcThread.execute(calculation);
+			}
+		}
+	}
+
+	public void displayFrame(Mat mat) {
+		synchronized(this) {
+			for (int i = 0; i < rois.length; i ++) {
+				Rect roi = rois[i];
+				MathUtils.set(panCorner[0], roi.x, roi.y);
+				MathUtils.set(panCorner[1], roi.x + roi.width, roi.y + roi.height);
+				Core.rectangle(mat, panCorner[0], panCorner[1], Colors.GREEN);
+				if (translations[i] == null)
+					continue;
+				MathUtils.add(panCorner[0], translations[i]);
+				MathUtils.add(panCorner[1], translations[i]);
+				Core.rectangle(mat, panCorner[0], panCorner[1], Colors.BLUE);
+			}
+		}
+	}
+
+	public void addCallback(MultiMotionCallback c) {
+		callbacks.add(c);
+	}
+
+	public void removeCallback(MultiMotionCallback c) {
+		callbacks.remove(c);
+	}
+
+	private class Calculation implements Runnable {
+		private final Mat curr, last;
+		private final Mat[] corr;
+		private final Point[] results;
+		private final boolean[] found;
+		private final List<Callable<Void>> tasks;
+		private final double[] xs, ys;
+
+		Calculation() {
+			curr = new Mat();
+			last = new Mat();
+			corr = new Mat[rois.length];
+			results = new Point[rois.length];
+			found = new boolean[rois.length];
+			tasks = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < rois.length; i ++) {
+				corr[i] = new Mat();
+				results[i] = new Point();
+				final int index = i;
+				tasks.add(new Callable<Void>() {
+					public Void call() {
+						match(index);
+						return null;
+					}
+				});
+			}
+			xs = new double[rois.length];
+			ys = new double[rois.length];
+		}
+
+		public void run() {
+			ExecutorService pool;
+			boolean refine;
+			//Compare the newest frame to the frame when the last calculation was run.
+			synchronized(MultiRoiTracker.this) {
+				currImg.copyTo(curr);
+				lastImg.copyTo(last);
+				currImg.copyTo(lastImg);
+				pool = matchThreads;
+				refine = subPixel;
+			}
+			for (int i = 0; i < rois.length; i ++)
+				found[i] = false;
+			if (pool == null) {
+				for (int i = 0; i < rois.length; i ++)
+					match(i);
+			}
+			else {
+				try {
+					List<Future<Void>> futures = pool.invokeAll(tasks);
+					for (Future<Void> f: futures)
+						f.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+				} catch (RejectedExecutionException e) {
+					return; //Stopped during the calculation
+				}
+			}
+			if (refine) {
+				for (int i = 0; i < rois.length; i ++)
+					if (found[i])
+						MathUtils.refinePeak(corr[i], results[i]);
+			}
+
+			int count = 0;
+			for (int i = 0; i < rois.length; i ++) {
+				if (!found[i])
+					continue;
+				//Convert back to screen coordinates
+				MathUtils.subtract(results[i], scaledRois[i].x, scaledRois[i].y);
+				MathUtils.divide(results[i], scale);
+				xs[count] = results[i].x;
+				ys[count] = results[i].y;
+				count ++;
+			}
+			synchronized(MultiRoiTracker.this) {
+				for (int i = 0; i < rois.length; i ++)
+					translations[i] = found[i] ? MathUtils.set(translations[i] == null ? new Point() : translations[i], results[i]) : null;
+				if (count == 0)
+					MathUtils.set(combined, 0, 0);
+				else
+					MathUtils.set(combined, median(xs, count), median(ys, count));
+				busy = false;
+			}
+			for (MultiMotionCallback c: callbacks)
+				c.motionResult(combined, translations);
+		}
+
+		//Runs on a worker thread. Each region only touches its own slots.
+		private void match(int i) {
+			Rect roi = scaledRois[i];
+			if (roi.x + roi.width > curr.cols() || roi.y + roi.height > curr.rows())
+				return;
+			Mat template = curr.submat(roi);
+			Imgproc.matchTemplate(last, template, corr[i], Imgproc.TM_CCORR_NORMED);
+			template.release();
+			Core.MinMaxLocResult minMax = Core.minMaxLoc(corr[i]);
+			if (minMax.maxVal == minMax.minVal) //No correlation found
+				return;
+			MathUtils.set(results[i], minMax.maxLoc);
+			found[i] = true;
+		}
+	}
+
+	/* Median of the first count values of v. Sorts them in place. */
+	static double median(double[] v, int count) {
+		Arrays.sort(v, 0, count);
+		if (count % 2 == 1)
+			return v[count / 2];
+		return (v[count / 2 - 1] + v[count / 2]) / 2;
+	}
+
+	public interface MultiMotionCallback {
+		/* combined is the median of every region that was found.
+		 * perRoi holds the result of each region, in the order they were given, or null for regions that could not be found.
+		 * Both are reused by the next result.
+		 */
+		public void motionResult(Point combined, Point[] perRoi);
+	}
+}
@@ -0,0 +1,100 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Point;
+
+/*
+ * Uniform grid over the tentative positions of TrackedObjects, used to find pairs of objects
+ * that might overlap without comparing every pair.
+ * Cells are at least as large as the largest distance at which TrackedObject.overlapViolation()
+ * can report an overlap, so any overlapping pair lies in the same or adjacent cells.
+ */
+class ObjectGrid {
+	private final Map<Long, List<Integer>> cells;
+	private final List<List<Integer>> spare;	//Cell lists from the last build, reused to avoid allocation
+	private int[] cellX, cellY;
+	private int[] neighbours;
+	private int neighbourCount;
+	private double cellWidth, cellHeight;
+
+	ObjectGrid() {
+		cells = new HashMap<Long, List<Integer>>();
+		spare = new ArrayList<List<Integer>>();
+		cellX = new int[0];
+		cellY = new int[0];
+		neighbours = new int[0];
+	}
+
+	private static long key(int x, int y) {
+		return ((long)x << 32) | (y & 0xffffffffL);
+	}
+
+	/* Place every object that is followed into the grid, using its tentative position. */
+	void build(List<TrackedObject> objects, double tolerance) {
+		for (List<Integer> list: cells.values()) {
+			list.clear();
+			spare.add(list);
+		}
+		cells.clear();
+		int size = objects.size();
+		if (cellX.length < size) {
+			cellX = new int[size];
+			cellY = new int[size];
+			neighbours = new int[size];
+		}
+		//overlapViolation() compares against the sum of both objects' dimensions
+		double maxWidth = 0, maxHeight = 0;
+		for (TrackedObject o: objects) {
+			maxWidth = Math.max(maxWidth, o.size.width);
+			maxHeight = Math.max(maxHeight, o.size.height);
+		}
+		cellWidth = Math.max(maxWidth * 2 * tolerance, 1);
+		cellHeight = Math.max(maxHeight * 2 * tolerance, 1);
+		for (int i = 0; i < size; i ++) {
+			TrackedObject o = objects.get(i);
+			Point pos = o.tentativePosition();
+			if (!o.followed() || pos == null)
+				continue;
+			cellX[i] = (int)Math.floor(pos.x / cellWidth);
+			cellY[i] = (int)Math.floor(pos.y / cellHeight);
+			long k = key(cellX[i], cellY[i]);
+			List<Integer> list = cells.get(k);
+			if (list == null) {
+				list = spare.isEmpty() ? new ArrayList<Integer>() : spare.remove(spare.size() - 1);
+				cells.put(k, list);
+			}
+			list.add(i);
+		}
+	}
+
+	/* Find the indices greater than index of objects in the same or adjacent cells, in ascending order.
+	 * Returns the number found; the indices are read with neighbour().
+	 * index must have been placed in the grid by build().
+	 */
+	int findNeighbours(int index) {
+		neighbourCount = 0;
+		for (int x = cellX[index] - 1; x <= cellX[index] + 1; x ++) {
+			for (int y = cellY[index] - 1; y <= cellY[index] + 1; y ++) {
+				List<Integer> list = cells.get(key(x, y));
+				if (list == null)
+					continue;
+				for (int i = 0; i < list.size(); i ++) {
+					int other = list.get(i);
+					if (other > index)
+						neighbours[neighbourCount ++] = other;
+				}
+			}
+		}
+		Arrays.sort(neighbours, 0, neighbourCount);
+		return neighbourCount;
+	}
+
+	int neighbour(int i) {
+		return neighbours[i];
+	}
+}
@@ -303,6 +303,10 @@ public class OpenCVCameraActivity extends Activity implements CvCameraViewListen
 		return cameraView.getMaxZoom();
 	}
 
+	public int getZoom() {
+		return cameraView.getZoom();
+	}
+
 	public void zoom(int amount) {
 		String str = cameraView.zoom(amount);
 		infoText.setText(getString(R.string.zoom_label) + str);
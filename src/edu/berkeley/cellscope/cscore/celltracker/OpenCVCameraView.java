@@ -82,6 +82,13 @@ public class OpenCVCameraView extends JavaCameraView {
 		return parameters.getZoomRatios().get(zoom) + "%";
 	}
 	
+	public int getZoom() {
+		Camera.Parameters parameters = mCamera.getParameters();
+		if (!parameters.isZoomSupported())
+			return 0;
+		return parameters.getZoom();
+	}
+	
 	public int getMaxZoom() {
 		Camera.Parameters parameters = mCamera.getParameters();
 		if (!parameters.isZoomSupported())
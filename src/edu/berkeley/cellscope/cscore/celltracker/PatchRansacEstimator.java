@@ -0,0 +1,270 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * FovTracker backend that tracks many small patches instead of one sample region.
+ * Patches are placed automatically on the strongest corners of the current frame, so featureless areas,
+ * such as an empty center of a sparse slide, are avoided. Each patch is located in the last frame within a small
+ * search window, and a translation (or optionally a translation and rotation) is fit to the patch motions with RANSAC.
+ * Patches that disagree with the best fit, because they matched onto the wrong feature or sit on something
+ * that moved on its own, are rejected as outliers.
+ *
+ * The confidence is the fraction of matched patches that are inliers. getInlierCount() gives the raw count.
+ * Work is done on a downscaled grayscale copy of each frame.
+ */
+public class PatchRansacEstimator implements MotionEstimator {
+	private final int patchCount;
+	private boolean rotation, subPixel;
+	private final Mat lastGray, currGray, small, corr;
+	private final MatOfPoint corners;
+	private final Size workSize;
+	private final Rect patch, window;
+	private final Point loc;
+	private final double[] ax, ay, bx, by; //Patch centers in the current frame, and where they were in the last frame
+	private final boolean[] inliers, bestInliers;
+	private final double[] fit; //angle, tx, ty
+	private final Random random;
+	private int matched, inlierCount;
+	private double angle;
+	private double confidence;
+
+	public static final int DEFAULT_PATCH_COUNT = 16;
+	private static final double SCALE = 0.5; //Downsampling applied before matching
+	private static final int PATCH_SIZE = 12; //Side of each patch, after downsampling
+	private static final int SEARCH_RADIUS = 24; //Farthest a patch is searched for, after downsampling
+	private static final double CORNER_QUALITY = 0.01; //Weakest corner accepted, relative to the strongest
+	private static final double MINIMUM_MATCH = 0.9; //Patches that match worse than this are discarded
+	private static final double INLIER_THRESHOLD = 2; //Farthest a patch can be from the fit and be an inlier, in screen pixels
+	private static final int RANSAC_ITERATIONS = 64; //Hypotheses tried when fitting rotation
+	private static final int MINIMUM_INLIERS = 2;
+
+	public PatchRansacEstimator() {
+		this(DEFAULT_PATCH_COUNT);
+	}
+
+	public PatchRansacEstimator(int n) {
+		patchCount = n;
+		lastGray = new Mat();
+		currGray = new Mat();
+		small = new Mat();
+		corr = new Mat();
+		corners = new MatOfPoint();
+		workSize = new Size();
+		patch = new Rect();
+		window = new Rect();
+		loc = new Point();
+		ax = new double[n];
+		ay = new double[n];
+		bx = new double[n];
+		by = new double[n];
+		inliers = new boolean[n];
+		bestInliers = new boolean[n];
+		fit = new double[3];
+		random = new Random(0);
+	}
+
+	/* Also fit a rotation about the screen's origin. Off by default. */
+	public void setRotation(boolean b) {
+		rotation = b;
+	}
+
+	public void setSubPixel(boolean b) {
+		subPixel = b;
+	}
+
+	public double getConfidence() {
+		return confidence;
+	}
+
+	/* Number of patches that agreed with the last fit. */
+	public int getInlierCount() {
+		return inlierCount;
+	}
+
+	/* Number of patches that were located in the last frame. */
+	public int getMatchedCount() {
+		return matched;
+	}
+
+	/* Rotation of the last fit, in radians. Always 0 unless rotation is enabled. */
+	public double getRotation() {
+		return angle;
+	}
+
+	public boolean estimate(Mat last, Mat curr, Rect roi, Point result) {
+		workSize.width = (int)(curr.cols() * SCALE);
+		workSize.height = (int)(curr.rows() * SCALE);
+		toGray(last, lastGray);
+		toGray(curr, currGray);
+		matchPatches();
+		inlierCount = 0;
+		confidence = 0;
+		angle = 0;
+		if (matched < MINIMUM_INLIERS)
+			return false;
+		if (rotation)
+			ransacRigid();
+		else
+			ransacTranslation();
+		if (inlierCount < MINIMUM_INLIERS)
+			return false;
+		confidence = (double)inlierCount / matched;
+		angle = fit[0];
+		//Motion of the sample region's center under the fit
+		double cos = Math.cos(angle), sin = Math.sin(angle);
+		double cx = roi.x + roi.width / 2.0, cy = roi.y + roi.height / 2.0;
+		MathUtils.set(result, cos * cx - sin * cy + fit[1] - cx, sin * cx + cos * cy + fit[2] - cy);
+		return true;
+	}
+
+	private void toGray(Mat src, Mat dst) {
+		if (src.channels() == 1)
+			Imgproc.resize(src, dst, workSize, 0, 0, Imgproc.INTER_AREA);
+		else {
+			Imgproc.resize(src, small, workSize, 0, 0, Imgproc.INTER_AREA);
+			Imgproc.cvtColor(small, dst, Imgproc.COLOR_BGR2GRAY);
+		}
+	}
+
+	//Place patches on the strongest corners of the current frame and locate them in the last frame.
+	private void matchPatches() {
+		matched = 0;
+		int half = PATCH_SIZE / 2;
+		//Ask for extra corners, since those near the edges are skipped
+		Imgproc.goodFeaturesToTrack(currGray, corners, patchCount * 2, CORNER_QUALITY, PATCH_SIZE);
+		int total = (int)corners.total();
+		for (int i = 0; i < total && matched < patchCount; i ++) {
+			double[] c = corners.get(i, 0);
+			patch.x = (int)c[0] - half;
+			patch.y = (int)c[1] - half;
+			patch.width = patch.height = PATCH_SIZE;
+			if (patch.x < 0 || patch.y < 0 || patch.x + PATCH_SIZE > currGray.cols() || patch.y + PATCH_SIZE > currGray.rows())
+				continue;
+			window.x = patch.x - SEARCH_RADIUS;
+			window.y = patch.y - SEARCH_RADIUS;
+			window.width = window.height = PATCH_SIZE + SEARCH_RADIUS * 2;
+			TrackedField.cropRectToMat(window, lastGray);
+			if (window.width < PATCH_SIZE || window.height < PATCH_SIZE)
+				continue;
+			Mat template = currGray.submat(patch);
+			Mat search = lastGray.submat(window);
+			Imgproc.matchTemplate(search, template, corr, Imgproc.TM_CCORR_NORMED);
+			template.release();
+			search.release();
+			Core.MinMaxLocResult minMax = Core.minMaxLoc(corr);
+			if (minMax.maxVal < MINIMUM_MATCH)
+				continue;
+			MathUtils.set(loc, minMax.maxLoc);
+			if (subPixel)
+				MathUtils.refinePeak(corr, loc);
+			ax[matched] = (patch.x + half) / SCALE;
+			ay[matched] = (patch.y + half) / SCALE;
+			bx[matched] = (loc.x + window.x + half) / SCALE;
+			by[matched] = (loc.y + window.y + half) / SCALE;
+			matched ++;
+		}
+	}
+
+	//Every patch is a hypothesis for a pure translation; keep the one with the most inliers, then average its inliers.
+	private void ransacTranslation() {
+		int best = 0;
+		for (int h = 0; h < matched; h ++) {
+			fit[0] = 0;
+			fit[1] = bx[h] - ax[h];
+			fit[2] = by[h] - ay[h];
+			int count = countInliers();
+			if (count > best) {
+				best = count;
+				System.arraycopy(inliers, 0, bestInliers, 0, matched);
+			}
+		}
+		double tx = 0, ty = 0;
+		for (int i = 0; i < matched; i ++) {
+			if (bestInliers[i]) {
+				tx += bx[i] - ax[i];
+				ty += by[i] - ay[i];
+			}
+		}
+		fit[0] = 0;
+		fit[1] = tx / best;
+		fit[2] = ty / best;
+		inlierCount = countInliers();
+	}
+
+	//Random pairs of patches are hypotheses for a rotation and translation; refit to the inliers of the best one.
+	private void ransacRigid() {
+		int best = 0;
+		for (int h = 0; h < RANSAC_ITERATIONS; h ++) {
+			int i = random.nextInt(matched);
+			int j = random.nextInt(matched - 1);
+			if (j >= i)
+				j ++;
+			bestFit(null, i, j);
+			int count = countInliers();
+			if (count > best) {
+				best = count;
+				System.arraycopy(inliers, 0, bestInliers, 0, matched);
+			}
+		}
+		bestFit(bestInliers, -1, -1);
+		inlierCount = countInliers();
+	}
+
+	/* Least squares rotation and translation mapping a onto b, stored in fit.
+	 * Uses the patches marked in use, or patches i and j if use is null.
+	 */
+	private void bestFit(boolean[] use, int i, int j) {
+		double cax = 0, cay = 0, cbx = 0, cby = 0;
+		int n = 0;
+		for (int k = 0; k < matched; k ++) {
+			if (use == null ? (k != i && k != j) : !use[k])
+				continue;
+			cax += ax[k];
+			cay += ay[k];
+			cbx += bx[k];
+			cby += by[k];
+			n ++;
+		}
+		cax /= n;
+		cay /= n;
+		cbx /= n;
+		cby /= n;
+		double dot = 0, cross = 0;
+		for (int k = 0; k < matched; k ++) {
+			if (use == null ? (k != i && k != j) : !use[k])
+				continue;
+			double px = ax[k] - cax, py = ay[k] - cay;
+			double qx = bx[k] - cbx, qy = by[k] - cby;
+			dot += px * qx + py * qy;
+			cross += px * qy - py * qx;
+		}
+		double theta = Math.atan2(cross, dot);
+		double cos = Math.cos(theta), sin = Math.sin(theta);
+		fit[0] = theta;
+		fit[1] = cbx - (cos * cax - sin * cay);
+		fit[2] = cby - (sin * cax + cos * cay);
+	}
+
+	private int countInliers() {
+		double cos = Math.cos(fit[0]), sin = Math.sin(fit[0]);
+		double threshold = INLIER_THRESHOLD * INLIER_THRESHOLD;
+		int count = 0;
+		for (int k = 0; k < matched; k ++) {
+			double ex = cos * ax[k] - sin * ay[k] + fit[1] - bx[k];
+			double ey = sin * ax[k] + cos * ay[k] + fit[2] - by[k];
+			inliers[k] = ex * ex + ey * ey <= threshold;
+			if (inliers[k])
+				count ++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,138 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ * FovTracker backend that finds the translation between whole frames by phase correlation.
+ * Both frames are converted to grayscale, downsampled, and windowed, and the peak of the inverse
+ * transform of their normalized cross-power spectrum gives the shift. Because the whole frame is used
+ * instead of a small template, this still works on pans that would carry the sample region out of view,
+ * and its cost does not depend on the size of the sample region, which is ignored.
+ *
+ * By default, the peak is refined to sub-pixel accuracy by fitting a parabola through it and its neighbors.
+ * Its height is used as the confidence: 1 for a pure translation, falling towards 0 as the frames
+ * stop resembling each other.
+ */
+public class PhaseCorrelationEstimator implements MotionEstimator {
+	private final double scale;
+	private Size workSize;
+	private int frameWidth, frameHeight;
+	private double scaleX, scaleY;
+	private final Mat gray, small, window, lastSpectrum, currSpectrum, cross, corr, magnitude;
+	private final List<Mat> planes;
+	private double confidence;
+	private boolean subPixel;
+
+	private static final double DEFAULT_SCALE = 0.25; //Downsampling applied before the transform
+	private static final Scalar EPSILON = new Scalar(1e-6); //Keeps empty frequencies from dividing by 0
+	private static final double MINIMUM_CONFIDENCE = 0.01; //Below this, the peak is indistinguishable from noise
+
+	public PhaseCorrelationEstimator() {
+		this(DEFAULT_SCALE);
+	}
+
+	public PhaseCorrelationEstimator(double s) {
+		scale = s;
+		gray = new Mat();
+		small = new Mat();
+		window = new Mat();
+		lastSpectrum = new Mat();
+		currSpectrum = new Mat();
+		cross = new Mat();
+		corr = new Mat();
+		magnitude = new Mat();
+		planes = new ArrayList<Mat>();
+		subPixel = true;
+	}
+
+	public boolean estimate(Mat last, Mat curr, Rect roi, Point result) {
+		if (workSize == null || last.cols() != frameWidth || last.rows() != frameHeight)
+			initSize(last.cols(), last.rows());
+		spectrum(last, lastSpectrum);
+		spectrum(curr, currSpectrum);
+
+		//Normalized cross-power spectrum of curr against last
+		Core.mulSpectrums(currSpectrum, lastSpectrum, cross, 0, true);
+		Core.split(cross, planes);
+		Core.magnitude(planes.get(0), planes.get(1), magnitude);
+		Core.add(magnitude, EPSILON, magnitude);
+		Core.divide(planes.get(0), magnitude, planes.get(0));
+		Core.divide(planes.get(1), magnitude, planes.get(1));
+		Core.merge(planes, cross);
+		for (Mat m: planes)
+			m.release();
+		planes.clear();
+		Core.idft(cross, corr, Core.DFT_REAL_OUTPUT | Core.DFT_SCALE, 0);
+
+		Core.MinMaxLocResult minMax = Core.minMaxLoc(corr);
+		confidence = Math.max(0, Math.min(1, minMax.maxVal));
+		if (confidence < MINIMUM_CONFIDENCE)
+			return false;
+		int px = (int)minMax.maxLoc.x;
+		int py = (int)minMax.maxLoc.y;
+		int w = corr.cols(), h = corr.rows();
+		double dx = px, dy = py;
+		if (subPixel) {
+			dx += MathUtils.parabolicOffset(value(px - 1, py), minMax.maxVal, value(px + 1, py));
+			dy += MathUtils.parabolicOffset(value(px, py - 1), minMax.maxVal, value(px, py + 1));
+		}
+		//The correlation is circular, so peaks past the middle are negative shifts
+		if (dx > w / 2)
+			dx -= w;
+		if (dy > h / 2)
+			dy -= h;
+		//The contents moved by (dx, dy), so the sample region was at -(dx, dy) in the last frame
+		MathUtils.set(result, -dx / scaleX, -dy / scaleY);
+		return true;
+	}
+
+	public double getConfidence() {
+		return confidence;
+	}
+
+	public void setSubPixel(boolean b) {
+		subPixel = b;
+	}
+
+	private void initSize(int w, int h) {
+		int sw = Core.getOptimalDFTSize((int)(w * scale));
+		int sh = Core.getOptimalDFTSize((int)(h * scale));
+		workSize = new Size(sw, sh);
+		frameWidth = w;
+		frameHeight = h;
+		scaleX = (double)sw / w;
+		scaleY = (double)sh / h;
+		Imgproc.createHanningWindow(window, workSize, CvType.CV_32F);
+	}
+
+	//Downsampled, windowed grayscale spectrum of img
+	private void spectrum(Mat img, Mat dst) {
+		if (img.channels() == 1)
+			Imgproc.resize(img, gray, workSize, 0, 0, Imgproc.INTER_AREA);
+		else {
+			Imgproc.resize(img, small, workSize, 0, 0, Imgproc.INTER_AREA);
+			Imgproc.cvtColor(small, gray, Imgproc.COLOR_BGR2GRAY);
+		}
+		gray.convertTo(small, CvType.CV_32F);
+		Core.multiply(small, window, small);
+		Core.dft(small, dst, Core.DFT_COMPLEX_OUTPUT, 0);
+	}
+
+	//Value of the correlation at (x, y), wrapping around the edges
+	private double value(int x, int y) {
+		int w = corr.cols(), h = corr.rows();
+		x = (x + w) % w;
+		y = (y + h) % h;
+		return corr.get(y, x)[0];
+	}
+}
@@ -9,6 +9,7 @@ import android.view.MenuItem;
 import android.view.View;
 import edu.berkeley.cellscope.cscore.R;
 import edu.berkeley.cellscope.cscore.cameraui.IlluminationControl;
+import edu.berkeley.cellscope.cscore.cameraui.TouchPanControl;
 import edu.berkeley.cellscope.cscore.cameraui.TouchSwipeControl;
 
 /* Has all stage basics.*/
@@ -32,8 +33,10 @@ public class StageCameraActivity extends OpenCVCameraActivity implements Autofoc
 		super.createAddons(width, height);
 		touchPan.setEnabled(true);
 		TouchSwipeControl swipeDriver = new TouchSwipeControl(this, width, height);
+		((TouchPanControl)touchPan).setPositionCounter(swipeDriver);
 		autofocus = new Autofocus(swipeDriver);
 		autofocus.addCallback(this);
+		autofocus.setFocusMap(new FocusMap());
 		realtimeProcessors.add(autofocus);
 		illumination = new IlluminationControl(this);
 	}
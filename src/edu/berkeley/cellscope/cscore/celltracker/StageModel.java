@@ -0,0 +1,212 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import org.opencv.core.Point;
+
+import edu.berkeley.cellscope.cscore.cameraui.TouchControl;
+
+/*
+ * Live estimate of how the stage responds to step commands, refined from every measured move.
+ *
+ * The steps-to-pixels matrix (columns xStep and yStep) is fit with recursive least squares, with a forgetting factor
+ * so that slow drift, such as a change in slide or mechanical wear, is followed.
+ * Backlash is kept separately for each direction. After the stage reverses along an axis, the steps commanded before
+ * the screen starts moving again, plus the part of the first moving stride that did not show up on screen,
+ * give one measurement of that direction's backlash, which is blended into the estimate.
+ * Strides that are partly consumed by backlash are not used for the matrix.
+ * Commands whose motion is not measured on their own, such as StepNavigator's large commands, must be reported
+ * with commanded(), so that reversals they make are known when the next stride is measured. Moves the model hears
+ * nothing about, such as manual swipes, are caught up on with synchronize().
+ *
+ * Strides only excite one axis at a time, so forgetting alone would let the covariance of the other axis grow without
+ * bound during long runs along one axis, and the next stride along it would be trusted far too much.
+ * The covariance is therefore kept within its calibrated value. Strides that miss the prediction by more than
+ * OUTLIER_ERROR of the predicted motion, such as when the tracker loses the field, are not used.
+ */
+public class StageModel {
+	private final Point xStep, yStep;	//pixels per step
+	private final double[] backlash;	//steps, indexed by direction
+	private final double[] p;			//RLS covariance, row-major 2x2
+	private final int[] lastDir;		//last direction moved along each axis
+	private final boolean[] takingUp;	//true while the last reversal's backlash has not been consumed
+	private final int[] takeup;			//steps commanded since the last reversal, before the screen moved
+	private final double[] unmeasured;	//backlash steps that unmeasured commands may not have taken up yet
+	private int updates;
+
+	private static final int X = 0, Y = 1;
+	private static final double FORGETTING = 0.98;		//Weight kept by old measurements on each update
+	private static final double INITIAL_COVARIANCE = 1e-2;	//Uncertainty of the calibrated step sizes
+	private static final double BACKLASH_GAIN = 0.3;	//Weight given to each new backlash measurement
+	private static final double MINIMUM_MOTION = 0.5;	//Moves shorter than this many steps are treated as consumed by backlash
+	private static final int BACKLASH_LIMIT = 42;		//Backlash measurements larger than this are discarded
+	private static final double OUTLIER_ERROR = 0.5;	//Strides that miss the prediction by more than this fraction are discarded
+
+	public StageModel() {
+		xStep = new Point();
+		yStep = new Point();
+		backlash = new double[4];
+		p = new double[4];
+		lastDir = new int[2];
+		takingUp = new boolean[2];
+		takeup = new int[2];
+		unmeasured = new double[2];
+		reset(new Point(), new Point(), new Point());
+	}
+
+	/* Start over from calibrated values. b holds the backlash along each axis, in steps. */
+	public synchronized void reset(Point b, Point x, Point y) {
+		MathUtils.set(xStep, x);
+		MathUtils.set(yStep, y);
+		backlash[index(TouchControl.xPositive)] = backlash[index(TouchControl.xNegative)] = b.x;
+		backlash[index(TouchControl.yPositive)] = backlash[index(TouchControl.yNegative)] = b.y;
+		p[0] = p[3] = INITIAL_COVARIANCE;
+		p[1] = p[2] = 0;
+		lastDir[X] = lastDir[Y] = TouchControl.stopMotor;
+		takingUp[X] = takingUp[Y] = false;
+		takeup[X] = takeup[Y] = 0;
+		unmeasured[X] = unmeasured[Y] = 0;
+		updates = 0;
+	}
+
+	/* Record that a move of steps in direction dir moved the screen by pixels. */
+	public synchronized void moved(int dir, int steps, Point pixels) {
+		int axis = axis(dir);
+		if (axis < 0 || steps <= 0)
+			return;
+		int sign = (dir == TouchControl.xPositive || dir == TouchControl.yPositive) ? 1 : -1;
+		if (dir != lastDir[axis]) {
+			//First move after a reversal; the unknown direction at startup is not counted as one
+			takingUp[axis] = lastDir[axis] != TouchControl.stopMotor;
+			takeup[axis] = 0;
+			unmeasured[axis] = 0;
+			lastDir[axis] = dir;
+		}
+		if (unmeasured[axis] > 0) {
+			//Part of this stride may have gone into backlash left over from unmeasured commands
+			unmeasured[axis] = Math.max(0, unmeasured[axis] - steps);
+			return;
+		}
+		//Steps along this axis that showed up on screen
+		Point step = axis == X ? xStep : yStep;
+		double size = step.x * step.x + step.y * step.y;
+		if (size == 0)
+			return;
+		double moved = sign * (pixels.x * step.x + pixels.y * step.y) / size;
+		if (takingUp[axis]) {
+			if (moved < MINIMUM_MOTION) {
+				takeup[axis] += steps;
+				return;
+			}
+			double measured = takeup[axis] + Math.max(0, steps - moved);
+			takingUp[axis] = false;
+			if (measured <= BACKLASH_LIMIT) {
+				int d = index(dir);
+				backlash[d] += BACKLASH_GAIN * (measured - backlash[d]);
+			}
+			return;
+		}
+		update(axis == X ? sign * steps : 0, axis == Y ? sign * steps : 0, pixels);
+	}
+
+	/* Record that a move of steps in direction dir was sent, but its motion will not be measured on its own. */
+	public synchronized void commanded(int dir, int steps) {
+		int axis = axis(dir);
+		if (axis < 0 || steps <= 0)
+			return;
+		if (dir != lastDir[axis]) {
+			//A reversal that cannot be measured; assume its backlash is taken up by the first steps in the new direction
+			unmeasured[axis] = lastDir[axis] == TouchControl.stopMotor ? 0 : backlash[index(dir)];
+			lastDir[axis] = dir;
+		}
+		takingUp[axis] = false;
+		unmeasured[axis] = Math.max(0, unmeasured[axis] - steps);
+	}
+
+	/* The stage last moved in direction dir through commands the model was not told about. */
+	public synchronized void synchronize(int dir) {
+		int axis = axis(dir);
+		if (axis < 0 || dir == lastDir[axis])
+			return;
+		//How far those commands went is unknown, so assume the reversal's backlash may not have been taken up yet
+		unmeasured[axis] = lastDir[axis] == TouchControl.stopMotor ? 0 : backlash[index(dir)];
+		lastDir[axis] = dir;
+		takingUp[axis] = false;
+	}
+
+	//One recursive least squares step, for both screen coordinates at once since they share a regressor.
+	private void update(double sx, double sy, Point pixels) {
+		double predictedX = xStep.x * sx + yStep.x * sy;
+		double predictedY = xStep.y * sx + yStep.y * sy;
+		double ex = pixels.x - predictedX;
+		double ey = pixels.y - predictedY;
+		if (Math.hypot(ex, ey) > OUTLIER_ERROR * Math.hypot(predictedX, predictedY))
+			return;
+		double px = p[0] * sx + p[1] * sy;
+		double py = p[2] * sx + p[3] * sy;
+		double denom = FORGETTING + sx * px + sy * py;
+		double kx = px / denom, ky = py / denom;
+		xStep.x += kx * ex;
+		yStep.x += ky * ex;
+		xStep.y += kx * ey;
+		yStep.y += ky * ey;
+		//P = (P - k * (phi^T P)) / lambda; phi^T P is (px, py) since P is symmetric
+		double p0 = (p[0] - kx * px) / FORGETTING;
+		double p1 = (p[1] - kx * py) / FORGETTING;
+		double p3 = (p[3] - ky * py) / FORGETTING;
+		//Forgetting grows the covariance of whichever axis did not move; keep it within its calibrated value
+		p0 = Math.min(p0, INITIAL_COVARIANCE);
+		p3 = Math.min(p3, INITIAL_COVARIANCE);
+		double limit = Math.sqrt(p0 * p3);
+		p[0] = p0;
+		p[1] = p[2] = Math.max(-limit, Math.min(p1, limit));
+		p[3] = p3;
+		updates ++;
+	}
+
+	/* Convert a displacement in the screen's x-y to the number of steps in the motor's x-y. */
+	public synchronized Point getRequiredSteps(Point target) {
+		double det = xStep.x * yStep.y - yStep.x * xStep.y;
+		if (det == 0)
+			return new Point(0, 0);
+		return new Point((target.x * yStep.y - yStep.x * target.y) / det,
+				(xStep.x * target.y - target.x * xStep.y) / det);
+	}
+
+	/* Backlash when reversing into direction dir, in steps. */
+	public synchronized double getBacklash(int dir) {
+		int d = index(dir);
+		return d < 0 ? 0 : backlash[d];
+	}
+
+	public synchronized Point getXStep() {
+		return xStep.clone();
+	}
+
+	public synchronized Point getYStep() {
+		return yStep.clone();
+	}
+
+	/* Number of strides that have refined the matrix since the last reset. */
+	public int getUpdateCount() {
+		return updates;
+	}
+
+	private static int axis(int dir) {
+		if (dir == TouchControl.xPositive || dir == TouchControl.xNegative)
+			return X;
+		if (dir == TouchControl.yPositive || dir == TouchControl.yNegative)
+			return Y;
+		return -1;
+	}
+
+	private static int index(int dir) {
+		if (dir == TouchControl.xPositive)
+			return 0;
+		if (dir == TouchControl.xNegative)
+			return 1;
+		if (dir == TouchControl.yPositive)
+			return 2;
+		if (dir == TouchControl.yNegative)
+			return 3;
+		return -1;
+	}
+}
@@ -5,28 +5,36 @@ import java.util.List;
 
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
-import org.opencv.core.Size;
 
 import edu.berkeley.cellscope.cscore.cameraui.TouchControl;
 import edu.berkeley.cellscope.cscore.cameraui.TouchSwipeControl;
 
 /*
  * Determines the number of motor steps that backlash will consume.
+ *
+ * A full calibration takes every direction through a reset, a backlash measurement and several strides.
+ * verify() instead checks a previously stored profile (see CalibrationStore) in every direction: the stage is reset,
+ * moved by the stored backlash plus one stride, which should come off backlash with exactly one stride of motion,
+ * and then moved a few more strides. It only falls back to a full calibration if either no longer matches.
+ *
+ * Either result seeds a StageModel, which StepNavigator refines with every stride it measures.
+ * getRequiredSteps() and adjustBacklash() use the refined values.
  */
 public class StepCalibrator implements RealtimeImageProcessor {
 	private boolean busy, calibrated;
 	private Point backlash;					//backlash experienced on the stepper motor, in number of steps
 	private Point xStep, yStep;				//number of pixels per step
+	private StageModel model;				//live estimate, seeded from the calibrated values
 	private int[] backlashResults;			//temporarily holds backlash results from each step of calibration
 	private Point[] partialStepResults;		//temporarily holds the partial step that occurs when coming off backlash
 	private Point[] stepResults;			//temporarily holds step size results from each step of calibration
+	private Point verifyResult;				//temporarily holds the motion measured while verifying a stored profile
 	private boolean continueCalibration;	//false if calibration is to be stopped
 	private int currentState, currentDir;	//the current direction the stage is calibrating, and the step it is on
-	private int trackerResponses;			//counts the number of FovTrackers that have finished calculating
 	private int moves;						//counts the number of strides that have been taken
 	private int wait;						//counts frames to wait
-	private FovTracker[] trackers;
-	private TrackerResult[] trackerResults;
+	private MultiRoiTracker tracker;		//tracks the motion of several regions of the screen
+	private TrackerResult trackerResult;
 	private TouchSwipeControl stage;		//controls the stage
 	private List<CalibrationCallback> callbacks;
 	
@@ -34,22 +42,30 @@ public class StepCalibrator implements RealtimeImageProcessor {
 	private static final int STATE_WAIT = 1;		//Calibrator is waiting several frames for screen to update
 	private static final int STATE_BACKLASH = 2;	//Calibrator is calculating the stage's backlash
 	private static final int STATE_STEP = 3;		//Calibrator is calculating the stage's step size
+	private static final int STATE_VERIFY_RESET = 4;	//Stage moves away from the direction to verify, to maximize backlash in it
+	private static final int STATE_VERIFY_WAIT = 5;		//Calibrator is waiting several frames for screen to update before verifying
+	private static final int STATE_VERIFY_TAKEUP = 6;	//Calibrator is moving off the stored backlash plus one stride
+	private static final int STATE_VERIFY_STEP = 7;		//Calibrator is comparing the take-up and strides against a stored profile
 	
 	private static final int[] MOVE_DIR = new int[]{TouchControl.xPositive, TouchControl.xNegative,
 			TouchControl.yPositive, TouchControl.yNegative};	//Order of directions to calibrate the stage in
 	private static final int[] RESET_DIR = new int[]{TouchControl.xNegative, TouchControl.xPositive,
 			TouchControl.yNegative, TouchControl.yPositive};	//Order of directions the stage to move to reset, opposite of MOVE_DIR
+	private static final int[] VERIFY_DIR = new int[]{0, 1, 2, 3};	//Indices into MOVE_DIR checked when verifying a stored profile
 	
 	private static final int REQUIRED_BACKLASH_MOVES = 6; 	//If the screen moves for this many consecutive strides, there is no more backlash
 	public static final int STRIDE_SIZE = 3;				//Number of steps the stage moves at once, per "stride"
 	public static final int REQUIRED_STRIDES = 6;			//Number of strides the stage takes to calibrate
 	
-	private static final double TRACKER_SIZE = 0.05;		//Size of each FovTracker relative to the smallest screen dimen.
-	private static final double TRACKER_SPACING = 0.07;		//Distance between each FovTracker
-	private static final int TRACKER_COUNT = 4;				//Number of FovTrackers
+	private static final double TRACKER_SIZE = 0.05;		//Size of each tracked region relative to the smallest screen dimen.
+	private static final double TRACKER_SPACING = 0.07;		//Distance between each tracked region
 	
 	private static final int BACKLASH_LIMIT = 42;			//Calibration will fail if the backlash is greater than this many steps
 	private static final int WAIT_FRAMES = 2;				//Number of frames to wait after each movement of the stage for the screen to update
+	private static final double STILL_THRESHOLD = 0.5;		//A region that moved less than this many pixels did not move
+	private static final int VERIFY_STRIDES = 3;			//Number of strides measured in each direction when verifying
+	private static final double VERIFY_TOLERANCE = 0.2;		//Largest error in the measured step, relative to the stored step, for a profile to be accepted
+	private static final double TAKEUP_TOLERANCE = 1.5;		//Largest error, in steps, in the motion of the take-up move for a profile to be accepted
 	public static final String SUCCESS_MESSAGE = "Calibration successful";
 	public static final String FAILURE_MESSAGE = "Calibration failed";
 
@@ -61,31 +77,10 @@ public class StepCalibrator implements RealtimeImageProcessor {
         calibrated = false;
         busy = false;
         stage = s;
-        trackers = new FovTracker[TRACKER_COUNT];
-        int dimen = w < h ? w: h;
-        int spacing = (int)(dimen * TRACKER_SPACING);
-        int size = (int)(dimen * TRACKER_SIZE);
-        Size rectSize = new Size(size, size);
-        Point loc = new Point();
-        MathUtils.set(loc, w / 2 - spacing, h / 2 - spacing);
-        trackers[0] = new FovTracker(w, h, MathUtils.createCenteredRect(loc, rectSize));
-        trackers[0].setPause(2);
-       
-        MathUtils.set(loc, w / 2 + spacing, h / 2 - spacing);
-        trackers[1] = new FovTracker(w, h, MathUtils.createCenteredRect(loc, rectSize));
-        trackers[1].setPause(2);
-       
-        MathUtils.set(loc, w / 2 - spacing, h / 2 + spacing);
-        trackers[2] = new FovTracker(w, h, MathUtils.createCenteredRect(loc, rectSize));
-        trackers[2].setPause(2);
-        
-        MathUtils.set(loc, w / 2 + spacing, h / 2 + spacing);
-        trackers[3] = new FovTracker(w, h, MathUtils.createCenteredRect(loc, rectSize));
-        trackers[3].setPause(2);
-        
-        trackerResults = new TrackerResult[TRACKER_COUNT];
-        for (int i = 0; i < TRACKER_COUNT; i ++)
-        	trackerResults[i] = new TrackerResult(trackers[i]);
+        tracker = new MultiRoiTracker(MultiRoiTracker.cornerRois(w, h, TRACKER_SIZE, TRACKER_SPACING));
+        tracker.setPause(2);
+        tracker.setSubPixel(true); //Strides move only a few pixels, which the downscaled search would round away
+        trackerResult = new TrackerResult();
         
         xStep = new Point();
         yStep = new Point();
@@ -97,6 +92,8 @@ public class StepCalibrator implements RealtimeImageProcessor {
         Point yNegStep = new Point();
         stepResults = new Point[]{xPosStep, xNegStep, yPosStep, yNegStep};
         partialStepResults = new Point[]{new Point(), new Point(), new Point(), new Point()};
+        verifyResult = new Point();
+        model = new StageModel();
         callbacks = new ArrayList<CalibrationCallback>();
 	}
 	
@@ -105,6 +102,30 @@ public class StepCalibrator implements RealtimeImageProcessor {
 			return;
 		busy = true;
 		System.out.println("begin calibration");
+		resetCalibration();
+		tracker.start();
+	}
+
+	/* Check a stored profile with a few strides instead of running the full calibration.
+	 * If the strides match, the profile is adopted; otherwise a full calibration follows.
+	 * Callbacks are notified once either finishes.
+	 */
+	public void verify(CalibrationStore.Profile p) {
+		if (busy || !stage.bluetoothConnected())
+			return;
+		busy = true;
+		System.out.println("verify calibration");
+		calibrated = false;
+		MathUtils.set(backlash, p.backlash);
+		MathUtils.set(xStep, p.xStep);
+		MathUtils.set(yStep, p.yStep);
+		currentState = STATE_VERIFY_RESET;
+		currentDir = 0;
+		moves = 0;
+		tracker.start();
+	}
+
+	private void resetCalibration() {
 		currentState = STATE_RESET;
 		currentDir = 0;
 		calibrated = false;
@@ -115,8 +136,6 @@ public class StepCalibrator implements RealtimeImageProcessor {
 			MathUtils.set(stepResults[i], 0, 0);
 			MathUtils.set(partialStepResults[i], 0, 0);
 		}
-		for (FovTracker tracker: trackers)
-			tracker.start();
 	}
 	
 	/** 
@@ -156,8 +175,7 @@ public class StepCalibrator implements RealtimeImageProcessor {
 					stage.swipe(MOVE_DIR[currentDir], STRIDE_SIZE);
 			}
 		} else if (currentState == STATE_STEP) {
-			for (int i = 0; i < TRACKER_COUNT; i ++)
-				MathUtils.add(stepResults[currentDir], trackerResults[i].movement);
+			MathUtils.add(stepResults[currentDir], trackerResult.movement);
 			moves ++;
 			if (moves == REQUIRED_STRIDES) {
 				moves = 0;
@@ -167,6 +185,59 @@ public class StepCalibrator implements RealtimeImageProcessor {
 					stage.swipe(MOVE_DIR[currentDir], STRIDE_SIZE);
 			} else
 				stage.swipe(MOVE_DIR[currentDir], STRIDE_SIZE);
+		} else if (currentState == STATE_VERIFY_RESET) {
+			stage.swipe(RESET_DIR[VERIFY_DIR[currentDir]], BACKLASH_LIMIT);
+			wait = WAIT_FRAMES;
+			currentState = STATE_VERIFY_WAIT;
+		} else if (currentState == STATE_VERIFY_WAIT) {
+			wait --;
+			if (wait <= 0)
+				currentState = STATE_VERIFY_TAKEUP;
+			continueRunning();
+		} else if (currentState == STATE_VERIFY_TAKEUP) {
+			int dir = VERIFY_DIR[currentDir];
+			int takeup = (int)Math.round(dir < 2 ? backlash.x : backlash.y);
+			MathUtils.set(verifyResult, 0, 0);
+			moves = 0;
+			currentState = STATE_VERIFY_STEP;
+			stage.swipe(MOVE_DIR[dir], takeup + STRIDE_SIZE);
+		} else if (currentState == STATE_VERIFY_STEP) {
+			int dir = VERIFY_DIR[currentDir];
+			Point expected = MathUtils.set(new Point(), dir < 2 ? xStep : yStep);
+			if (dir % 2 == 1)
+				MathUtils.multiply(expected, -1);
+			double size = Math.hypot(expected.x, expected.y);
+			if (size == 0) {
+				rejectProfile();
+				return;
+			}
+			if (moves == 0) {
+				//The take-up move should have come off backlash with exactly one stride of motion, if the stored backlash is right
+				Point m = trackerResult.movement;
+				double moved = (m.x * expected.x + m.y * expected.y) / (size * size);
+				System.out.println("verify take-up " + currentDir + ": " + moved + " steps, expected " + STRIDE_SIZE);
+				if (Math.abs(moved - STRIDE_SIZE) > TAKEUP_TOLERANCE) {
+					rejectProfile();
+					return;
+				}
+			} else
+				MathUtils.add(verifyResult, trackerResult.movement);
+			if (moves < VERIFY_STRIDES) {
+				moves ++;
+				stage.swipe(MOVE_DIR[dir], STRIDE_SIZE);
+				return;
+			}
+			MathUtils.divide(verifyResult, VERIFY_STRIDES * STRIDE_SIZE);
+			double error = MathUtils.dist(verifyResult, expected);
+			System.out.println("verify " + currentDir + ": " + verifyResult + " expected " + expected);
+			if (error > VERIFY_TOLERANCE * size)
+				rejectProfile();
+			else if (++ currentDir >= VERIFY_DIR.length)
+				verificationComplete();
+			else {
+				currentState = STATE_VERIFY_RESET;
+				executeCalibration();
+			}
 		}
 	}
 	
@@ -185,19 +256,16 @@ public class StepCalibrator implements RealtimeImageProcessor {
 	}
 	
 	public void processFrame(Mat mat) {
-		for (FovTracker tracker: trackers)
-			tracker.processFrame(mat);
+		tracker.processFrame(mat);
 	}
 
 	public void displayFrame(Mat mat) {
-		for (FovTracker tracker: trackers)
-			tracker.displayFrame(mat);
+		tracker.displayFrame(mat);
 	}
 	
-	//All FovTrackers to resume
+	//Resume tracking
 	public void continueRunning() {
-		for (FovTracker tracker: trackers)
-			tracker.resume();
+		tracker.resume();
 	}
 	
 	
@@ -211,18 +279,19 @@ public class StepCalibrator implements RealtimeImageProcessor {
 	
 	private void calibrationComplete() {
 		System.out.println("calibration complete");
-		for (FovTracker tracker: trackers)
-			tracker.stop();
+		tracker.stop();
 		for (int i = 0; i < stepResults.length; i ++)
-			MathUtils.divide(stepResults[i], TRACKER_COUNT * REQUIRED_STRIDES * STRIDE_SIZE);
+			MathUtils.divide(stepResults[i], REQUIRED_STRIDES * STRIDE_SIZE);
 		backlash.x = (backlashResults[0] + backlashResults[1]) / 2;
 		backlash.y = (backlashResults[2] + backlashResults[3]) / 2;
 		MathUtils.set(xStep, stepResults[0]);
 		MathUtils.subtract(xStep, stepResults[1]);
 		MathUtils.divide(xStep, 2);
-		MathUtils.set(yStep, stepResults[3]);
-		MathUtils.subtract(yStep, stepResults[4]);
+		MathUtils.set(yStep, stepResults[2]);
+		MathUtils.subtract(yStep, stepResults[3]);
 		MathUtils.divide(yStep, 2);
+		model.reset(backlash, xStep, yStep);
+		stage.setBacklash((int)Math.round(backlash.x), (int)Math.round(backlash.y));
 		busy = false;
 		calibrated = true;
 		for (CalibrationCallback c: callbacks)
@@ -235,14 +304,42 @@ public class StepCalibrator implements RealtimeImageProcessor {
 	}
 	
 	
+	//Fall back to a full calibration
+	private void rejectProfile() {
+		System.out.println("stored calibration rejected");
+		resetCalibration();
+		executeCalibration();
+	}
+
+	private void verificationComplete() {
+		System.out.println("stored calibration accepted");
+		tracker.stop();
+		model.reset(backlash, xStep, yStep);
+		stage.setBacklash((int)Math.round(backlash.x), (int)Math.round(backlash.y));
+		busy = false;
+		calibrated = true;
+		for (CalibrationCallback c: callbacks)
+			c.calibrationComplete(true);
+	}
+
+	/* A copy of the current results, including everything StageModel has learned since, for storing. */
+	public CalibrationStore.Profile getProfile() {
+		Point b = new Point((model.getBacklash(TouchControl.xPositive) + model.getBacklash(TouchControl.xNegative)) / 2,
+				(model.getBacklash(TouchControl.yPositive) + model.getBacklash(TouchControl.yNegative)) / 2);
+		return new CalibrationStore.Profile(b, model.getXStep(), model.getYStep());
+	}
+
+	public StageModel getStageModel() {
+		return model;
+	}
+
 	public void stop() {
 		calibrationFailed();
 	}
 	
 	public void calibrationFailed() {
 		System.out.println("calibration failed");
-		for (FovTracker tracker: trackers)
-			tracker.stop();
+		tracker.stop();
 		busy = false;
 		calibrated = false;
 		for (CalibrationCallback c: callbacks)
@@ -261,35 +358,25 @@ public class StepCalibrator implements RealtimeImageProcessor {
 		continueCalibration = continueCalibration || result;
 	}
 	
-	private synchronized boolean trackerResponsesComplete() {
-		trackerResponses ++;
-		if (trackerResponses == TRACKER_COUNT) {
-			trackerResponses = 0;
-			return true;
-		}
-		return false;
-	}
-	
 	public static interface CalibrationCallback {
 		public void calibrationComplete(boolean success);
 	}
 	
-	private class TrackerResult implements FovTracker.MotionCallback {
-		private FovTracker tracker;
-		Point movement;
+	private class TrackerResult implements MultiRoiTracker.MultiMotionCallback {
+		Point movement; //median motion of all regions
 		
-		private TrackerResult(FovTracker ft) {
-			tracker = ft;
+		private TrackerResult() {
 			tracker.addCallback(this);
 			movement = new Point();
 		}
 		
-		public synchronized void motionResult(Point result) {
-			continueCalibration(result.x == 0 && result.y == 0);
+		public synchronized void motionResult(Point combined, Point[] perRoi) {
 			tracker.pause();
-			MathUtils.set(movement, result);
-			if (trackerResponsesComplete())
-				executeCalibration();
+			//The screen is still moving off backlash if any region did not move
+			for (Point p: perRoi)
+				continueCalibration(p == null || Math.hypot(p.x, p.y) < STILL_THRESHOLD);
+			MathUtils.set(movement, combined);
+			executeCalibration();
 		}
 	}
 
@@ -297,14 +384,7 @@ public class StepCalibrator implements RealtimeImageProcessor {
 	public Point getRequiredSteps(Point target) {
 		if (!calibrated)
 			return new Point(0, 0);
-		double a1 = xStep.x, a2 = xStep.y, b1 = yStep.x, b2 = yStep.y;
-		double det = (a1 * b2 - b1 * a2);
-		double x1 = target.x, x2 = target.y;
-		double c1 = (x1 * b2) + (-b1 * x2);
-		double c2 = (x1 * -a2) + (b2 * x2);
-		c1 /= det;
-		c2 /= det;
-		return new Point(c1, c2);
+		return model.getRequiredSteps(target);
 	}
 	
 	public TouchSwipeControl getStageController() {
@@ -315,17 +395,17 @@ public class StepCalibrator implements RealtimeImageProcessor {
 	public Point adjustBacklash(Point steps) {
 		if (steps.x > 0) {
 			if (stage.backlashOccurs(TouchControl.xPositive))
-				steps.x += backlash.x;
+				steps.x += Math.round(model.getBacklash(TouchControl.xPositive));
 		} else if (steps.x < 0) {
 			if (stage.backlashOccurs(TouchControl.xNegative))
-				steps.x -= backlash.x;
+				steps.x -= Math.round(model.getBacklash(TouchControl.xNegative));
 		}
 		if (steps.y > 0) {
 			if (stage.backlashOccurs(TouchControl.yPositive))
-				steps.y += backlash.y;
+				steps.y += Math.round(model.getBacklash(TouchControl.yPositive));
 		} else if (steps.y < 0) {
 			if (stage.backlashOccurs(TouchControl.yNegative))
-				steps.y -= backlash.y;
+				steps.y -= Math.round(model.getBacklash(TouchControl.yNegative));
 		}
 		return steps;
 	}
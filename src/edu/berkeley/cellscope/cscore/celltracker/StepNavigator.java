@@ -6,13 +6,25 @@ import java.util.List;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 
+import edu.berkeley.cellscope.cscore.cameraui.TouchControl;
 import edu.berkeley.cellscope.cscore.cameraui.TouchSwipeControl;
 import edu.berkeley.cellscope.cscore.devices.bluetooth.BluetoothDeviceConnectable;
 
 /**
  *  Moves the stage.
+ *  Every stride is measured with a FovTracker, and the measurement is fed to the calibrator's StageModel,
+ *  so the step sizes and backlash used to plan later moves improve over a session.
+ *
+ *  In MODE_STRIDE (the default), the stage moves one stride at a time, and waits for a tracker result after each.
+ *  In MODE_BATCHED, the planned steps are sent as a few large commands, interleaving x and y along the straight line
+ *  to the target (see MotionPlanner), while the tracker follows the screen without pausing. Once the stage settles, the remaining error is corrected with strides as in MODE_STRIDE.
+ *  A result that is unmatched or below the minimum confidence drops real motion or adds a wrong one, so the estimate
+ *  built from the large commands is abandoned: no further large commands are sent, and once the stage settles,
+ *  the steps that were never sent are made up with measured strides. Such a navigation ends with navigationLost()
+ *  instead of navigationComplete(), since the distance it covered was only predicted from the StageModel.
+ *  getMoveCount(), getFrameCount() and getElapsedTime() report the cost of the last navigation.
  */
-public class StepNavigator implements RealtimeImageProcessor, FovTracker.MotionCallback {
+public class StepNavigator implements RealtimeImageProcessor, FovTracker.TimedMotionCallback {
 	private StepCalibrator calibrator;
 	private TouchSwipeControl stage;
 	private Autofocus autofocus;
@@ -20,10 +32,29 @@ public class StepNavigator implements RealtimeImageProcessor, FovTracker.MotionC
 	private Point target, steps;	//Target location and the distance moved so far
 	private Point offtarget; 		//How off-target the final movement was--how many pixels the stage needs to move by to be on target
 	private boolean moving, targetSet;
+	private int lastDir, lastSteps;	//The stride whose motion the next tracker result measures
+	private int mode, phase;
+	private MotionPlanner planner;
+	private MotionPlanner.Plan plan;	//Large commands for MODE_BATCHED
+	private boolean bulkStarted;
+	private boolean measured;		//false once a result could not be trusted; the offtarget estimate is then predicted
+	private double minConfidence;
+	private int settleResults;		//Tracker results left to wait for once the large commands are done
+	private int moves, frames;
+	private long startTime, elapsedTime;
 	private FovTracker tracker;
 	private List<NavigationCallback> callbacks;
 
 	private static final int STRIDE_SIZE = StepCalibrator.STRIDE_SIZE;
+	private static final int SETTLE_RESULTS = 2; //Tracker results after the last large command before correcting
+	public static final double DEFAULT_MIN_CONFIDENCE = 0.5; //Results below this confidence are not trusted
+
+	public static final int MODE_STRIDE = 0;
+	public static final int MODE_BATCHED = 1;
+
+	private static final int PHASE_STRIDE = 0; //Moving one measured stride at a time
+	private static final int PHASE_BULK = 1; //Sending large commands
+	private static final int PHASE_SETTLE = 2; //Waiting for the tracker to catch up with the last large command
 
 	public StepNavigator(BluetoothDeviceConnectable bt, int w, int h) {
 		TouchSwipeControl ctrl = new TouchSwipeControl(bt, w, h);
@@ -48,6 +79,8 @@ public class StepNavigator implements RealtimeImageProcessor, FovTracker.MotionC
 		target = new Point();
 		offtarget = new Point();
 		callbacks = new ArrayList<NavigationCallback>();
+		planner = new MotionPlanner();
+		minConfidence = DEFAULT_MIN_CONFIDENCE;
 	}
 
 	/** Sets the navigator to move by displacement p */
@@ -61,14 +94,60 @@ public class StepNavigator implements RealtimeImageProcessor, FovTracker.MotionC
 			return;
 		MathUtils.set(target, x, y);
 		MathUtils.set(offtarget, target);
-		calibrator.getRequiredSteps(target);
+		planSteps(target);
 		targetSet = true;
+	}
+
+	private void planSteps(Point distance) {
+		steps = calibrator.getRequiredSteps(distance);
 		steps.x = (steps.x > 0) ? (int)(steps.x + 0.5) : (int)(steps.x - 0.5); //round no. of steps
 		steps.y = (steps.y > 0) ? (int)(steps.y + 0.5) : (int)(steps.y - 0.5);
 
 		calibrator.adjustBacklash(steps);
 	}
 
+	/** MODE_STRIDE or MODE_BATCHED. Takes effect at the next start(). */
+	public void setMode(int m) {
+		mode = m;
+	}
+
+	/** Tracker results with a lower confidence are treated as lost. The scale depends on the tracker's backend. */
+	public void setMinimumConfidence(double c) {
+		minConfidence = c;
+	}
+
+	public StepCalibrator getCalibrator() {
+		return calibrator;
+	}
+
+	/** Plans the large commands of MODE_BATCHED, and estimates travel times. */
+	public MotionPlanner getPlanner() {
+		return planner;
+	}
+
+	/** Estimated time, in milliseconds, to move the screen by distance with MODE_BATCHED, not counting correction. */
+	public double estimateTime(Point distance) {
+		if (!calibrator.isCalibrated())
+			return 0;
+		Point s = calibrator.adjustBacklash(calibrator.getRequiredSteps(distance));
+		return planner.estimateTime((int)Math.round(s.x), (int)Math.round(s.y));
+	}
+
+	/** Number of commands sent to the stage during the last navigation. */
+	public int getMoveCount() {
+		return moves;
+	}
+
+	/** Number of frames processed during the last navigation. */
+	public int getFrameCount() {
+		return frames;
+	}
+
+	/** Duration of the last navigation, in milliseconds. */
+	public long getElapsedTime() {
+		return elapsedTime;
+	}
+
 	/** The navigator will move to the target specified by setTarget() */
 	public void start() {
 		System.out.println("initiate navigation");
@@ -78,6 +157,23 @@ public class StepNavigator implements RealtimeImageProcessor, FovTracker.MotionC
 		System.out.println("prerequisites fulfilled");
 		targetSet = false;
 		moving = true;
+		//Catch the model up on any moves made since the last navigation, such as the calibrator's
+		StageModel model = calibrator.getStageModel();
+		model.synchronize(stage.getLastDirection(TouchControl.xPositive));
+		model.synchronize(stage.getLastDirection(TouchControl.yPositive));
+		lastDir = TouchControl.stopMotor;
+		lastSteps = 0;
+		measured = true;
+		moves = frames = 0;
+		startTime = System.currentTimeMillis();
+		phase = PHASE_STRIDE;
+		if (mode == MODE_BATCHED && (Math.abs(steps.x) >= STRIDE_SIZE || Math.abs(steps.y) >= STRIDE_SIZE)) {
+			phase = PHASE_BULK;
+			plan = planner.plan((int)steps.x, (int)steps.y);
+			bulkStarted = false;
+			System.out.println("planned " + plan.getCommandCount() + " commands, estimated " + plan.getEstimatedTime() + " ms");
+			MathUtils.set(steps, 0, 0);
+		}
 		tracker.start();
 	}
 
@@ -98,6 +194,10 @@ public class StepNavigator implements RealtimeImageProcessor, FovTracker.MotionC
 	 *  be updated when the navigator is updated.
 	 */
 	public void processFrame(Mat mat) {
+		if (moving) {
+			frames ++;
+			tracker.processFrame(mat);
+		}
 		if (processSub) {
 			if (autofocus.isRunning()) {
 				autofocus.processFrame(mat);
@@ -120,8 +220,26 @@ public class StepNavigator implements RealtimeImageProcessor, FovTracker.MotionC
 	}
 
 	/** Called when motor completes stride. */
-	public void continueRunning() {
-		tracker.pause();
+	public synchronized void continueRunning() {
+		if (phase == PHASE_BULK) {
+			if (!measured || !sendCommand()) {
+				phase = PHASE_SETTLE;
+				settleResults = SETTLE_RESULTS;
+			}
+			return;
+		}
+		tracker.resume();
+	}
+
+	/* Send the next large command. Returns false if there are none left. */
+	private boolean sendCommand() {
+		if (!plan.hasNext())
+			return false;
+		int i = plan.next();
+		moves ++;
+		calibrator.getStageModel().commanded(plan.getDirection(i), plan.getSteps(i));
+		stage.swipe(plan.getDirection(i), plan.getSteps(i));
+		return true;
 	}
 
 	/** Called when the FovTracker has a result on exactly how much
@@ -129,28 +247,118 @@ public class StepNavigator implements RealtimeImageProcessor, FovTracker.MotionC
 	 * Calculates which direction the stage should move for the next stride,
 	 * then executes the move.
 	 */
-	public void motionResult(Point result) {
+	public synchronized void motionResult(FovTracker.MotionResult r) {
+		Point result = r.translation;
+		boolean trusted = r.found && r.confidence >= minConfidence;
+		if (phase == PHASE_BULK && !bulkStarted) {
+			//The tracker keeps running while the large commands execute; the first result marks the starting frame
+			bulkStarted = true;
+			if (!sendCommand())
+				phase = PHASE_STRIDE;
+			else
+				return;
+		} else if (!trusted && (phase == PHASE_BULK || phase == PHASE_SETTLE)) {
+			if (measured)
+				System.out.println("lost track during large commands; finishing with strides");
+			measured = false;
+		} else if (trusted && (measured || phase == PHASE_STRIDE))
+			MathUtils.subtract(offtarget, result);
+		if (phase == PHASE_BULK)
+			return;
+		if (phase == PHASE_SETTLE) {
+			settleResults --;
+			if (settleResults > 0)
+				return;
+			phase = PHASE_STRIDE;
+			if (measured) {
+				//Correct whatever error the large commands left
+				planSteps(offtarget);
+			} else
+				planUnsent();
+			lastSteps = 0;
+		}
 		tracker.pause();
-		MathUtils.subtract(offtarget, result);
+		if (lastSteps > 0) {
+			if (trusted)
+				calibrator.getStageModel().moved(lastDir, lastSteps, result);
+			else {
+				//Whatever this stride moved is unknown; the navigation can no longer report a measured error
+				measured = false;
+				calibrator.getStageModel().commanded(lastDir, lastSteps);
+				int n = (lastDir == TouchControl.xPositive || lastDir == TouchControl.yPositive) ? lastSteps : -lastSteps;
+				boolean xAxis = lastDir == TouchControl.xPositive || lastDir == TouchControl.xNegative;
+				MathUtils.subtract(offtarget, predictMotion(xAxis ? n : 0, xAxis ? 0 : n));
+			}
+		}
 
 		if (targetReached()) {
-			stop();
-		} else if (steps.y > steps.x) {
-			steps.y -= STRIDE_SIZE;
-			stage.swipeY(STRIDE_SIZE);
-		} else if (steps.x > steps.y) {
-			steps.x -= STRIDE_SIZE;
-			stage.swipeX(STRIDE_SIZE);
+			complete();
+		} else if (Math.abs(steps.y) > Math.abs(steps.x)) {
+			lastDir = steps.y > 0 ? TouchControl.yPositive : TouchControl.yNegative;
+			steps.y -= Math.signum(steps.y) * STRIDE_SIZE;
+			stride(lastDir);
+		} else {
+			lastDir = steps.x > 0 ? TouchControl.xPositive : TouchControl.xNegative;
+			steps.x -= Math.signum(steps.x) * STRIDE_SIZE;
+			stride(lastDir);
+		}
+	}
+
+	/* The large commands were abandoned: plan strides for the steps that were never sent, and predict the error from them. */
+	private void planUnsent() {
+		double x = 0, y = 0;
+		while (plan.hasNext()) {
+			int i = plan.next();
+			int dir = plan.getDirection(i), n = plan.getSteps(i);
+			if (dir == TouchControl.xPositive)
+				x += n;
+			else if (dir == TouchControl.xNegative)
+				x -= n;
+			else if (dir == TouchControl.yPositive)
+				y += n;
+			else if (dir == TouchControl.yNegative)
+				y -= n;
 		}
+		MathUtils.set(steps, x, y);
+		MathUtils.set(offtarget, predictMotion(x, y));
+	}
+
+	//Screen motion the StageModel expects from a move of (x, y) steps.
+	private Point predictMotion(double x, double y) {
+		StageModel model = calibrator.getStageModel();
+		Point xStep = model.getXStep(), yStep = model.getYStep();
+		return new Point(xStep.x * x + yStep.x * y, xStep.y * x + yStep.y * y);
+	}
+
+	private void stride(int dir) {
+		lastSteps = STRIDE_SIZE;
+		moves ++;
+		stage.swipe(dir, STRIDE_SIZE);
+	}
+
+	private void complete() {
+		stop();
+		elapsedTime = System.currentTimeMillis() - startTime;
+		System.out.println("navigation completed in " + moves + " moves, " + frames + " frames, " + elapsedTime + " ms");
+		Point moved = MathUtils.set(new Point(), target);
+		MathUtils.subtract(moved, offtarget);
+		if (!measured) {
+			System.out.println("navigation was not fully measured");
+			for (NavigationCallback n: callbacks)
+				n.navigationLost(target, moved, offtarget);
+			return;
+		}
+		for (NavigationCallback n: callbacks)
+			n.navigationComplete(target, moved, offtarget);
 	}
 
 	/** Return true if the navigator cannot move any closer to the target. */
 	private boolean targetReached() {
-		return steps.x < STRIDE_SIZE && steps.y < STRIDE_SIZE;
+		return Math.abs(steps.x) < STRIDE_SIZE && Math.abs(steps.y) < STRIDE_SIZE;
 	}
 
 	/** Get the displacement between the intended target and the actual location
-	 * that we moved to.
+	 * that we moved to. Only an estimate if the last navigation was not fully measured.
 	 */
 	public Point getErrorDistance() {
 		return offtarget;
@@ -166,5 +374,8 @@ public class StepNavigator implements RealtimeImageProcessor, FovTracker.MotionC
 
 	public static interface NavigationCallback {
 		public void navigationComplete(Point target, Point moved, Point error);
+
+		/* The tracker lost the screen along the way, so moved and error are predicted from the StageModel, not measured. */
+		public void navigationLost(Point target, Point moved, Point error);
 	}
 }
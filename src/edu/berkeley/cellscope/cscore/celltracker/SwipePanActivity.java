@@ -1,12 +1,18 @@
 package edu.berkeley.cellscope.cscore.celltracker;
 
+import java.io.File;
+
+import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
 
 import android.os.Message;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import edu.berkeley.cellscope.cscore.CameraActivity;
 import edu.berkeley.cellscope.cscore.R;
 import edu.berkeley.cellscope.cscore.cameraui.TouchSwipeControl;
 import edu.berkeley.cellscope.cscore.devices.bluetooth.BluetoothDeviceConnectable;
@@ -19,14 +25,17 @@ import edu.berkeley.cellscope.cscore.devices.bluetooth.BluetoothDeviceConnectabl
  * to count down. When the first command is done executing (i.e. no more steps remaining),
  * the next command will be executed if it has remaining steps.
  */
-public class SwipePanActivity extends OpenCVCameraActivity implements Autofocus.AutofocusCallback, StepCalibrator.CalibrationCallback, FovTracker.MotionCallback {
-	private MenuItem mMenuItemCalibrate, mMenuItemAutofocus, mMenuItemIllumination;
+public class SwipePanActivity extends OpenCVCameraActivity implements Autofocus.AutofocusCallback, StepCalibrator.CalibrationCallback, FovTracker.MotionCallback,
+		ZStackCapture.ZStackCallback {
+	private MenuItem mMenuItemCalibrate, mMenuItemAutofocus, mMenuItemZStack, mMenuItemIllumination;
 
 	protected TouchSwipeControl touchSwipe;
 	private StepCalibrator calibrator;
+	private CalibrationStore calibrationStore;
 	private StepNavigator navigator;
 	private FovTracker positionTracker;
 	protected Autofocus autofocus;
+	protected ZStackCapture zStack;
 
 	@Override
 	protected void createAddons(int width, int height) {
@@ -38,9 +47,14 @@ public class SwipePanActivity extends OpenCVCameraActivity implements Autofocus.
 		TouchSwipeControl swipeDriver = new TouchSwipeControl(this, width, height);
 		autofocus = new Autofocus(swipeDriver);
 		autofocus.addCallback(this);
+		autofocus.setFocusMap(new FocusMap());
 		realtimeProcessors.add(autofocus);
+		zStack = new ZStackCapture(swipeDriver);
+		zStack.addCallback(this);
+		realtimeProcessors.add(zStack);
 		calibrator = new StepCalibrator(swipeDriver, width, height);
 		calibrator.addCallback(this);
+		calibrationStore = new CalibrationStore(this);
 		positionTracker = new FovTracker(width, height);
 		navigator = new StepNavigator(calibrator, autofocus, positionTracker);
 		realtimeProcessors.add(calibrator);
@@ -68,6 +82,9 @@ public class SwipePanActivity extends OpenCVCameraActivity implements Autofocus.
 			else if (autofocus.isRunning()) {
 				autofocus.continueRunning();
 			}
+			else if (zStack.isRunning()) {
+				zStack.continueRunning();
+			}
 		}
 	}
 
@@ -88,6 +105,9 @@ public class SwipePanActivity extends OpenCVCameraActivity implements Autofocus.
 		if (mMenuItemAutofocus != null) {
 			mMenuItemAutofocus.setEnabled(true);
 		}
+		if (mMenuItemZStack != null) {
+			mMenuItemZStack.setEnabled(true);
+		}
 		if (mMenuItemIllumination != null) {
 			mMenuItemIllumination.setEnabled(true);
 		}
@@ -102,6 +122,9 @@ public class SwipePanActivity extends OpenCVCameraActivity implements Autofocus.
 		if (mMenuItemAutofocus != null) {
 			mMenuItemAutofocus.setEnabled(false);
 		}
+		if (mMenuItemZStack != null) {
+			mMenuItemZStack.setEnabled(false);
+		}
 		if (mMenuItemIllumination != null) {
 			mMenuItemIllumination.setEnabled(false);
 		}
@@ -129,6 +152,9 @@ public class SwipePanActivity extends OpenCVCameraActivity implements Autofocus.
 		inflater.inflate(R.menu.menu_autofocus, menu);
 		mMenuItemAutofocus = menu.getItem(menuItems++);
 		mMenuItemAutofocus.setEnabled(false);
+		inflater.inflate(R.menu.menu_zstack, menu);
+		mMenuItemZStack = menu.getItem(menuItems++);
+		mMenuItemZStack.setEnabled(false);
 		inflater.inflate(R.menu.menu_illumination, menu);
 		mMenuItemIllumination = menu.getItem(menuItems++);
 		mMenuItemIllumination.setEnabled(false);
@@ -151,15 +177,23 @@ public class SwipePanActivity extends OpenCVCameraActivity implements Autofocus.
 			autofocus.start();
 			return true;
 		}
+		else if (id == R.id.zstack) {
+			//The stage acknowledges one command at a time, so only start once everything else has stopped
+			if (!autofocus.isRunning() && !navigator.isRunning() && !calibrator.isRunning())
+				zStack.start();
+			return true;
+		}
 		return false;
 	}
 
+	/* Uses the stored calibration for this stage and zoom if it still holds. */
 	public void runStageCalibration() {
-		calibrator.start();
+		calibrationStore.warmStart(calibrator, getDeviceConnection().getDeviceAddress(), getZoom());
 	}
 
 	public void calibrationComplete(boolean success) {
 		if (success) {
+			calibrationStore.save(calibrator, getDeviceConnection().getDeviceAddress(), getZoom());
 			toast(StepCalibrator.SUCCESS_MESSAGE);
 		} else {
 			toast(StepCalibrator.FAILURE_MESSAGE);
@@ -199,4 +233,31 @@ public class SwipePanActivity extends OpenCVCameraActivity implements Autofocus.
 			toast(Autofocus.FAILURE_MESSAGE);
 		}
 	}
+
+	public void sliceCaptured(int index, int z, Mat slice) {
+		return;
+	}
+
+	/* Saves the all-in-focus image alongside the activity's other captures. */
+	public void stackComplete(boolean success, Mat fused) {
+		if (!success) {
+			toast(ZStackCapture.FAILURE_MESSAGE);
+			return;
+		}
+		File file = CameraActivity.getOutputMediaFile(CameraActivity.MEDIA_TYPE_IMAGE);
+		if (file == null) {
+			toast(ZStackCapture.FAILURE_MESSAGE);
+			return;
+		}
+		Mat bgr = new Mat();
+		Imgproc.cvtColor(fused, bgr, Imgproc.COLOR_RGBA2BGR);
+		boolean saved = Highgui.imwrite(file.toString(), bgr);
+		bgr.release();
+		if (saved) {
+			System.out.println("saved z-stack to " + file);
+			toast(ZStackCapture.SUCCESS_MESSAGE);
+		} else {
+			toast(ZStackCapture.FAILURE_MESSAGE);
+		}
+	}
 }
@@ -1,16 +1,20 @@
 package edu.berkeley.cellscope.cscore.celltracker;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
@@ -23,11 +27,12 @@ import org.opencv.imgproc.Imgproc;
  */
 public class TrackedField implements RealtimeImageProcessor {
 	private Mat currentField;
-	private Mat nextFrame;
+	private FrameExchange frames; //Hands frames from the camera thread to the update thread
 	private Point center;
 	private int radius;
 	private List<TrackedObject> objects;
-	private List<Long> times;
+	private long[] times; //Time of each output row, relative to startTime
+	private int frameCount; //Number of output rows recorded
 	private long startTime, nextTime;
 	private int interval;
 	private boolean tracking;
@@ -35,15 +40,40 @@ public class TrackedField implements RealtimeImageProcessor {
 	private final Object lockUpdate, lockDisplay;
 
 	private ScheduledExecutorService updateThread;
+	private ExecutorService matchThreads; //Worker pool that runs TrackedObject.update() in parallel
+	private List<Callable<Void>> matchTasks;
+	private List<TrackedObject> matchObjects; //The object each of matchTasks updates
+	private List<Mat> pyramid; //Downsampled copies of currentField, shared by all objects. pyramid.get(0) is currentField.
+	private int pyramidLevels;
+	private int motionModel;
+	private boolean subPixel;
+	private int preprocessing;
+	private boolean roiPreprocessing; //Only preprocess the area covered by the objects' ROIs
+	private FieldNormalizer normalizer;
+	private Rect processRegion;
+	private Mat pathOverlay, pathMask; //Cached drawing of every object's path
+	private int visiblePaths; //Number of paths drawn on pathOverlay
+	private ObjectGrid grid; //Spatial index used to find overlapping objects
+	private int threadCount;
+	private long matchTime, resolveTime; //Duration of the last update's matching and conflict resolution, in ms
+	private boolean reportTiming;
 
-	private File file;
-	private String header;
-	private List<String> output;
+	private TrackingCsvWriter output; //null if output is not being saved
+	private double[] row; //Coordinates for the current output row, reused for every update
+	private File binaryFile; //null if trajectories are not being saved in binary
+	private String title;
+	private List<Trajectory> trajectories; //Output rows for each object, for the binary file
 	private static final int INITIAL_DELAY = 500;
+	private static final int INITIAL_FRAME_CAPACITY = 256;
 	private static final long NULL_TIME = 0;
+	private static final int GRID_THRESHOLD = 16; //With fewer objects than this, compare every pair directly
+	public static final int PREPROCESS_FULL = 0; //Run every normalization pass on every update
+	public static final int PREPROCESS_LUT = 1; //Apply the normalization as a lookup table that is refreshed periodically
+	public static final int AUTO_THREADS = 0; //Size the worker pool to the number of available cores
 
 	public TrackedField(Mat img, Point fovCenter, int fovRadius) {
-		nextFrame = img;
+		frames = new FrameExchange();
+		frames.publish(img);
 		currentField = new Mat();
 		img.copyTo(currentField);
 		center = fovCenter;
@@ -52,9 +82,22 @@ public class TrackedField implements RealtimeImageProcessor {
 		objects = new ArrayList<TrackedObject>();
 		lockDisplay = new Object();
 		lockUpdate = new Object();
-		times = new ArrayList<Long>();
+		times = new long[INITIAL_FRAME_CAPACITY];
+		frameCount = 0;
+		trajectories = new ArrayList<Trajectory>();
 		startTime = NULL_TIME;
-		output = new ArrayList<String>();
+		row = new double[0];
+		matchTasks = new ArrayList<Callable<Void>>();
+		matchObjects = new ArrayList<TrackedObject>();
+		threadCount = AUTO_THREADS;
+		pyramid = new ArrayList<Mat>();
+		pyramid.add(currentField);
+		pyramidLevels = 0;
+		motionModel = TrackedObject.MOTION_AVERAGE;
+		preprocessing = PREPROCESS_FULL;
+		normalizer = new FieldNormalizer();
+		processRegion = new Rect();
+		grid = new ObjectGrid();
 	}
 
 	private static void processImage(Mat mat) {
@@ -81,19 +124,27 @@ public class TrackedField implements RealtimeImageProcessor {
 					return;
 				cropRectToMat(region, currentField);
 				TrackedObject object = new TrackedObject(region, currentField);
+				object.setMotionModel(motionModel);
+				object.setSubPixel(subPixel);
 				objects.add(object);
-				if (!times.isEmpty()) {
-					object.addNullPath(times.size());
+				Trajectory trajectory = new Trajectory();
+				if (frameCount > 0) {
+					object.addNullPath(frameCount);
+					trajectory.addLost(frameCount);
 				}
+				trajectories.add(trajectory);
 			}
 		}
 	}
 
 	public void initiateUpdateThread() {
+		int threads = getThreadCount();
+		if (threads > 1)
+			matchThreads = Executors.newFixedThreadPool(threads);
 		updateThread = Executors.newSingleThreadScheduledExecutor();
 		Runnable updater = new Runnable() {
 			public void run() {
-				update(nextFrame);
+				update();
 			}
 		};
 		updateThread.scheduleWithFixedDelay(updater, INITIAL_DELAY, interval, TimeUnit.MILLISECONDS);
@@ -103,11 +154,131 @@ public class TrackedField implements RealtimeImageProcessor {
 		interval = i;
 	}
 
+	/* Sets the number of threads used to match objects during each update.
+	 * 1 matches objects serially on the update thread. AUTO_THREADS uses one thread per core.
+	 * Takes effect the next time the update thread is started.
+	 */
+	public void setThreadCount(int i) {
+		threadCount = i;
+	}
+
+	/* Sets the number of downsampled levels used to search for objects that have been lost.
+	 * Each level halves the resolution. 0 searches the full field at full resolution.
+	 */
+	public void setPyramidLevels(int i) {
+		synchronized(lockUpdate) {
+			pyramidLevels = i < 0 ? 0 : i;
+			while (pyramid.size() > pyramidLevels + 1)
+				pyramid.remove(pyramid.size() - 1).release();
+			while (pyramid.size() < pyramidLevels + 1)
+				pyramid.add(new Mat());
+		}
+	}
+
+	/* Selects how each object predicts where to search on the next update.
+	 * Either TrackedObject.MOTION_AVERAGE or TrackedObject.MOTION_KALMAN.
+	 */
+	public void setMotionModel(int model) {
+		synchronized(lockUpdate) {
+			motionModel = model;
+			for (TrackedObject o: objects)
+				o.setMotionModel(model);
+		}
+	}
+
+	/* Refine each object's position to sub-pixel accuracy. The refined positions are recorded in the output. */
+	public void setSubPixel(boolean b) {
+		synchronized(lockUpdate) {
+			subPixel = b;
+			for (TrackedObject o: objects)
+				o.setSubPixel(b);
+		}
+	}
+
+	/* Selects how each new frame is normalized. Either PREPROCESS_FULL or PREPROCESS_LUT.
+	 * If roiOnly is set, PREPROCESS_LUT only processes the union of the objects' ROIs
+	 * between lookup table refreshes. The rest of the field keeps older frames, which is safe since
+	 * the union is only used while every object searches within its ROI.
+	 */
+	public void setPreprocessing(int mode, boolean roiOnly) {
+		synchronized(lockUpdate) {
+			preprocessing = mode;
+			roiPreprocessing = roiOnly;
+			normalizer.invalidate();
+		}
+	}
+
+	/* Number of updates between each rebuild of the lookup table used by PREPROCESS_LUT. */
+	public void setPreprocessingRefresh(int i) {
+		synchronized(lockUpdate) {
+			normalizer.setRefreshInterval(i);
+		}
+	}
+
+	private void preprocess(Mat newField) {
+		if (preprocessing == PREPROCESS_LUT) {
+			normalizer.normalize(newField, currentField, roiPreprocessing ? objectRegion() : null);
+		}
+		else {
+			newField.copyTo(currentField);
+			processImage(currentField);
+		}
+	}
+
+	/* Return the smallest rectangle covering every active object's ROI,
+	 * or null if any active object has no ROI and must be searched for over the whole field.
+	 */
+	private Rect objectRegion() {
+		int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE, x2 = Integer.MIN_VALUE, y2 = Integer.MIN_VALUE;
+		for (TrackedObject o: objects) {
+			if (o.isDisabled())
+				continue;
+			Rect r = o.roi;
+			if (r == null)
+				return null;
+			x1 = Math.min(x1, r.x);
+			y1 = Math.min(y1, r.y);
+			x2 = Math.max(x2, r.x + r.width);
+			y2 = Math.max(y2, r.y + r.height);
+		}
+		if (x1 > x2 || y1 > y2)
+			return null;
+		processRegion.x = x1;
+		processRegion.y = y1;
+		processRegion.width = x2 - x1;
+		processRegion.height = y2 - y1;
+		return processRegion;
+	}
+
+	//Downsample the processed field once per update so every lost object can share it.
+	//Skipped when no object will search the entire field.
+	private void buildPyramid() {
+		if (pyramidLevels == 0)
+			return;
+		boolean needed = false;
+		for (TrackedObject o: objects)
+			needed = needed || o.needsFullSearch();
+		if (!needed)
+			return;
+		for (int i = 1; i <= pyramidLevels; i ++)
+			Imgproc.pyrDown(pyramid.get(i - 1), pyramid.get(i));
+	}
+
+	public int getThreadCount() {
+		if (threadCount <= AUTO_THREADS)
+			return Runtime.getRuntime().availableProcessors();
+		return threadCount;
+	}
+
 	public void haltUpdateThread() {
 		if (updateThread != null) {
 			updateThread.shutdown();
 		}
 		updateThread = null;
+		if (matchThreads != null) {
+			matchThreads.shutdown();
+		}
+		matchThreads = null;
 	}
 
 	public List<Rect> getBoundingBoxes() {
@@ -115,70 +286,168 @@ public class TrackedField implements RealtimeImageProcessor {
 			List<Rect> list = new ArrayList<Rect>();
 			for (TrackedObject o: objects)
 				if (!o.isDisabled()) {
-					list.add(o.boundingBox);
+					list.add(o.boundingBox.clone());
 				}
 			return list;
 		}
 	}
 
+	//Called on the camera thread. Does not block on the update thread.
 	public void processFrame(Mat frame) {
-		synchronized(lockDisplay) {
-			synchronized(lockUpdate) {
-				nextFrame = frame;
-				nextTime = System.currentTimeMillis();
-			}
-		}
+		frames.publish(frame);
+	}
+
+	/* Returns the FrameExchange used to pass frames to the update thread,
+	 * which counts dropped frames and how stale each processed frame was.
+	 */
+	public FrameExchange getFrameExchange() {
+		return frames;
 	}
 
-	private void update(Mat newField) {
+	//Process the newest frame from the camera. Skipped if no new frame has arrived since the last update.
+	private void update() {
+		Mat newField = frames.take();
+		if (newField == null)
+			return;
 		synchronized(lockUpdate) {
+			nextTime = frames.getFrameTime();
 			//newField.copyTo(display);
-			newField.copyTo(currentField);
-			processImage(currentField);
+			preprocess(newField);
+			buildPyramid();
 			long time = System.currentTimeMillis();
-			long total = 0;
-			for (TrackedObject o: objects) {
-				if (!o.isDisabled()) {
-					o.update(currentField);
-					long oldTime = time;
-					time = System.currentTimeMillis();
-					total += (time - oldTime);
-					//	System.out.println("\tUpdated one object in " + (time - oldTime) + "; match " + o.tMatch);
-				}
-			}
-			resolveIssues();
-			confirmUpdate();
+			//haltUpdateThread() may shut the pool down and clear it at any time, so it is read once
+			ExecutorService pool = matchThreads;
+			if (pool != null) {
+				if (!updateObjectsParallel(pool))
+					return;
+			} else
+				updateObjects();
 			long oldTime = time;
 			time = System.currentTimeMillis();
-			total += (time - oldTime);
-			//System.out.println("\tResolved conflicts in " + (time - oldTime));
+			matchTime = time - oldTime;
+			resolveIssues();
+			confirmUpdate();
+			oldTime = time;
 			time = System.currentTimeMillis();
-			//System.out.println("Update complete in " + total + " with " + objects.size() + " object(s)");
+			resolveTime = time - oldTime;
+			if (reportTiming)
+				System.out.println("Update complete in " + getLastUpdateTime() + " (match " + matchTime + ", resolve " + resolveTime
+						+ ") with " + objects.size() + " object(s) on " + (pool == null ? 1 : getThreadCount()) + " thread(s); pool "
+						+ MatPool.getShared() + "; frame age " + frames.getLastFrameAge() + ", dropped " + frames.getDroppedCount()
+						+ ", stale " + frames.getStaleCount());
 			if (tracking) {
 				long newtime = nextTime - startTime;
 				if (callback != null) {
 					callback.trackingUpdateComplete(newField);
 				}
 
-				if (file != null) {
-					String write = newtime + ",";
-					for (TrackedObject o: objects) {
-						if (o.lastPathPoint() != null) {
-							write += (o.lastPathPoint().x + "," + o.lastPathPoint().y + ",");
-						} else {
-							write += ("?,?,");
-						}
-					}
-					output.add(write);
+				writeRow(newtime);
+
+			}
+		}
+	}
+
+	//Record each object's latest position, and pass them on to the output files.
+	private void writeRow(long time) {
+		if (frameCount == times.length) {
+			long[] newTimes = new long[times.length * 2];
+			System.arraycopy(times, 0, newTimes, 0, frameCount);
+			times = newTimes;
+		}
+		times[frameCount ++] = time;
+		int size = objects.size();
+		if (row.length < size * 2)
+			row = new double[size * 2];
+		for (int i = 0; i < size; i ++) {
+			Point pt = objects.get(i).lastPathPoint();
+			row[i * 2] = (pt == null) ? Double.NaN : pt.x;
+			row[i * 2 + 1] = (pt == null) ? Double.NaN : pt.y;
+			if (binaryFile != null)
+				trajectories.get(i).add(pt);
+		}
+		if (output != null)
+			output.addRow(time, row, size * 2);
+	}
+
+	//An object whose update() fails is treated as lost, so that its half-written tentative state is never confirmed.
+	private void updateObjects() {
+		for (TrackedObject o: objects) {
+			if (!o.isDisabled()) {
+				try {
+					o.update(currentField, pyramid);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					o.invalidateUpdate();
 				}
+			}
+		}
+	}
 
+	//Fan TrackedObject.update() out over the worker pool, then wait for every object to finish.
+	//Each object only writes to its own fields and reads currentField, so no further locking is needed.
+	//Returns false if the update has to be skipped because the pool was shut down.
+	private boolean updateObjectsParallel(ExecutorService pool) {
+		matchTasks.clear();
+		matchObjects.clear();
+		for (final TrackedObject o: objects) {
+			if (!o.isDisabled()) {
+				matchTasks.add(new Callable<Void>() {
+					public Void call() {
+						o.update(currentField, pyramid);
+						return null;
+					}
+				});
+				matchObjects.add(o);
 			}
 		}
+		List<Future<Void>> results;
+		try {
+			results = pool.invokeAll(matchTasks);
+		} catch (RejectedExecutionException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		for (int i = 0; i < results.size(); i ++) {
+			try {
+				results.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				matchObjects.get(i).invalidateUpdate();
+			}
+		}
+		return true;
+	}
+
+	/* Time spent in the last update matching objects, in milliseconds. */
+	public long getLastMatchTime() {
+		return matchTime;
+	}
+
+	/* Time spent in the last update resolving conflicts and confirming positions, in milliseconds. */
+	public long getLastResolveTime() {
+		return resolveTime;
+	}
+
+	public long getLastUpdateTime() {
+		return matchTime + resolveTime;
+	}
+
+	//Print the duration of every update.
+	public void setTimingReport(boolean b) {
+		reportTiming = b;
 	}
 
 	//Check to see if multiple TrackedObjects are tracking the same object, and remove them
 	private void resolveIssues() {
 		int size = objects.size();
+		boolean useGrid = size >= GRID_THRESHOLD;
+		if (useGrid)
+			grid.build(objects, TrackedObject.TOLERATED_OVERLAP);
 		for (int i = 0; i < size; i ++) {
 			TrackedObject first = objects.get(i);
 			if (first.isDisabled()) {
@@ -190,30 +459,42 @@ public class TrackedField implements RealtimeImageProcessor {
 			if (!first.followed()) {
 				continue;
 			}
-			for (int j = i + 1; j < size; j ++) {
-				TrackedObject second = objects.get(j);
-				if (second.isDisabled()) {
-					continue;
-				}
-				if (!second.followed() || !first.followed()) {
-					continue;
-				}
-				if (!first.overlapViolation(second)) {
-					continue;
-				}
-				boolean violation = first.trackingViolation(second);
-				if (!violation) {
-					System.out.println("invalidating update: overlap failure");
-					first.invalidateUpdate();
+			if (useGrid) {
+				//Only objects in neighbouring cells can overlap. They are visited in the same order as the full loop.
+				int count = grid.findNeighbours(i);
+				for (int n = 0; n < count; n ++) {
+					resolveOverlap(first, objects.get(grid.neighbour(n)));
 				}
-				else {
-					System.out.println("invalidating update: overlap failure");
-					second.invalidateUpdate();
+			}
+			else {
+				for (int j = i + 1; j < size; j ++) {
+					resolveOverlap(first, objects.get(j));
 				}
 			}
 		}
 	}
 
+	private static void resolveOverlap(TrackedObject first, TrackedObject second) {
+		if (second.isDisabled()) {
+			return;
+		}
+		if (!second.followed() || !first.followed()) {
+			return;
+		}
+		if (!first.overlapViolation(second)) {
+			return;
+		}
+		boolean violation = first.trackingViolation(second);
+		if (!violation) {
+			System.out.println("invalidating update: overlap failure");
+			first.invalidateUpdate();
+		}
+		else {
+			System.out.println("invalidating update: overlap failure");
+			second.invalidateUpdate();
+		}
+	}
+
 	//Mark all objects as updated
 	private void confirmUpdate() {
 		for (TrackedObject o: objects) {
@@ -223,16 +504,43 @@ public class TrackedField implements RealtimeImageProcessor {
 		}
 	}
 
-	//Return an image with object locations and paths overlaid.
+	/* Return an image with object locations and paths overlaid.
+	 * Paths are drawn incrementally onto a cached overlay, so the cost of drawing them
+	 * does not grow with the length of the session.
+	 */
 	public void displayFrame(Mat mat) {
 		synchronized(lockDisplay) {
 			Core.circle(mat, center, radius, Colors.WHITE);
+			if (pathOverlay == null || pathOverlay.cols() != mat.cols() || pathOverlay.rows() != mat.rows()
+					|| pathOverlay.type() != mat.type()) {
+				pathOverlay = new Mat(mat.size(), mat.type());
+				pathMask = new Mat(mat.size(), CvType.CV_8UC1);
+				visiblePaths = -1;
+			}
+			//Paths disappear when objects are disabled or tracking stops, so redraw everything when the set of visible paths changes.
+			int visible = 0;
+			for (TrackedObject o: objects) {
+				if (!o.isDisabled() && o.pathVisible())
+					visible ++;
+			}
+			if (visible != visiblePaths) {
+				visiblePaths = visible;
+				pathMask.setTo(Colors.BLACK);
+				for (TrackedObject o: objects)
+					o.resetPathDrawing();
+			}
 			for (TrackedObject o: objects) {
 				//if (o.roi != null) {
 				//	Core.rectangle(display, o.roi.tl(), o.roi.br(), GREEN);
 				//}
 				if (!o.isDisabled()) {
-					o.drawInfo(mat);
+					o.drawNewPath(pathOverlay, pathMask);
+				}
+			}
+			pathOverlay.copyTo(mat, pathMask);
+			for (TrackedObject o: objects) {
+				if (!o.isDisabled()) {
+					o.drawMarkers(mat);
 				}
 			}
 		}
@@ -246,6 +554,9 @@ public class TrackedField implements RealtimeImageProcessor {
 			if (startTime == NULL_TIME) {
 				startTime = System.currentTimeMillis();
 			}
+			if (output != null) {
+				output.open();
+			}
 			for (TrackedObject o: objects)
 				if (!o.isDisabled()) {
 					o.setTracking(true);
@@ -261,9 +572,7 @@ public class TrackedField implements RealtimeImageProcessor {
 			for (TrackedObject o: objects) {
 				o.setTracking(false);
 			}
-			if (file != null) {
-				dumpOutputToFile();
-			}
+			closeCsvOutput();
 		}
 	}
 
@@ -271,37 +580,37 @@ public class TrackedField implements RealtimeImageProcessor {
 		return updateThread != null;
 	}
 
-	public void dumpOutputToFile() {
+	private void closeOutput() {
+		closeCsvOutput();
+		writeBinaryOutput();
+	}
+
+	//Finish the output file with each object's size and the fov's dimensions.
+	private void closeCsvOutput() {
+		if (output == null || !output.isOpen())
+			return;
+		StringBuilder summary = new StringBuilder();
+		String newLine = System.getProperty("line.separator");
+		summary.append("id,width,height").append(newLine);
+		int size = objects.size();
+		for (int i = 0; i < size; i ++) {
+			Size dim = objects.get(i).size;
+			summary.append(i).append(',').append(dim.width).append(',').append(dim.height).append(',').append(newLine);
+		}
+		summary.append(newLine);
+		summary.append("fov center,").append(center.x).append(',').append(center.y).append(',').append(newLine);
+		summary.append("fov radius,").append(radius).append(',').append(newLine);
+		output.close(summary.toString());
+	}
+
+	private void writeBinaryOutput() {
+		if (binaryFile == null || frameCount == 0)
+			return;
+		List<Size> sizes = new ArrayList<Size>();
+		for (TrackedObject o: objects)
+			sizes.add(o.size);
 		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-			writer.write(header);
-			writer.newLine();
-			writer.newLine();
-			String tableColumns = "time,";
-			int size = objects.size();
-			for (int i = 0; i < size; i ++) {
-				tableColumns += "x" + i + ",y" + i + ",";
-			}
-			writer.write(tableColumns);
-			writer.newLine();
-			for (String s: output) {
-				writer.write(s);
-				writer.newLine();
-			}
-			writer.newLine();
-			writer.write("id,width,height");
-			writer.newLine();
-			for (int i = 0; i < size; i ++) {
-				Size dim = objects.get(i).size;
-				writer.write(i +"," + dim.width + "," + dim.height+",");
-				writer.newLine();
-			}
-			writer.newLine();
-			writer.write("fov center," + center.x + "," + center.y + ",");
-			writer.newLine();
-			writer.write("fov radius," + radius + ",");
-			writer.newLine();
-			writer.close();
+			TrajectoryFile.write(binaryFile, title, times, frameCount, trajectories, sizes, center, radius);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -319,8 +628,9 @@ public class TrackedField implements RealtimeImageProcessor {
 		synchronized(lockDisplay) {
 			synchronized(lockUpdate) {
 				startTime = NULL_TIME;
-				times.clear();
-				output.clear();
+				closeOutput();
+				frameCount = 0;
+				trajectories.clear();
 				objects.clear();
 				haltUpdateThread();
 			}
@@ -333,9 +643,22 @@ public class TrackedField implements RealtimeImageProcessor {
 		}
 	}
 
+	/* Rows are streamed to f while tracking. Each stopTracking() ends the file with a summary,
+	 * and the next startTracking() appends to it.
+	 */
 	public void setOutputFile(File f, String title) {
-		file = f;
-		header = title;
+		synchronized(lockUpdate) {
+			closeCsvOutput();
+			this.title = title;
+			output = (f == null) ? null : new TrackingCsvWriter(f, title);
+		}
+	}
+
+	/* Save every object's trajectory to f in the TrajectoryFile format when resetData() is called. */
+	public void setBinaryOutputFile(File f) {
+		synchronized(lockUpdate) {
+			binaryFile = f;
+		}
 	}
 
 	public Rect selectObject(Point point) {
@@ -346,7 +669,7 @@ public class TrackedField implements RealtimeImageProcessor {
 					TrackedObject obj = objects.get(i);
 					if (obj.boundingBox.contains(point)) {
 						obj.disable();
-						return obj.boundingBox;
+						return obj.boundingBox.clone();
 					}
 				}
 				return null;
@@ -1,5 +1,4 @@
 package edu.berkeley.cellscope.cscore.celltracker;
-import java.util.ArrayList;
 import java.util.List;
 
 import org.opencv.core.Core;
@@ -7,6 +6,7 @@ import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
@@ -15,7 +15,7 @@ import org.opencv.imgproc.Imgproc;
  * Holds information about a tracked object's appearance and location over time.
  */
 public class TrackedObject {
-	final List<Point> path; //center
+	final Trajectory path; //center
 	final Size size;
 	//Fields that start with "t" store tentative data from update(), which can be confirmed using confirmUpdate();
 	Point position; //top left
@@ -27,13 +27,19 @@ public class TrackedObject {
 	Rect boundingBox, roi;
 	private Rect tBoundingBox, tRoi;
 	private double currentRoi, tCurrentRoi, minimumRoi;
-	private Mat image, tImage; //clipped image of object used for cross-correlation
+	private Mat image, tImage; //clipped image of object used for cross-correlation. image is a copy; tImage is a view into the field
 	private double tMatch; //Correlation coefficient. Used to resolve conflicts with two objects tracking to the same spot
 	
 	private Mat corrResult; //Used to store the result of cross-correlation
+	private Mat coarseTemplate, coarseResult; //Used for the downsampled search when the object is lost
+	private Rect refineRegion;
 	private boolean first = true;
+	private Point lastPoint; //Reused to read points out of path
+	private PathRenderer fullRenderer, cachedRenderer;
+	private KalmanMotionModel motion; //null when the ROI is placed using the average step distance
+	private boolean subPixel; //Refine match positions to sub-pixel accuracy
 	
-	private static final double TOLERATED_OVERLAP = 0.2;
+	static final double TOLERATED_OVERLAP = 0.2;
 	private static final double MATCH_TOLERANCE = 0.00001;
 	private static final double MATCH_THRESHOLD = 0.85;
 	
@@ -41,6 +47,9 @@ public class TrackedObject {
 	private static final int STATE_WATCHING = 5;
 	private static final int STATE_DISABLED = 4;
 	
+	public static final int MOTION_AVERAGE = 0; //Center the ROI on the last position, sized by the average step distance
+	public static final int MOTION_KALMAN = 1; //Center the ROI on a constant-velocity prediction, sized by its uncertainty
+	
 	private static final int AUTO_DISABLE = 12; //number of consecutive frames an object can be lost before it is removed
 	
 	private static final double ROI_SIZE = 1.5; //Region about each object to check for new positions.
@@ -54,12 +63,23 @@ public class TrackedObject {
 	private static final int MINIMUM_DIAGONAL = 10;
 	private static final double PERMITTED_PATH_DEVIATION = Math.PI / 2;
 	private static final int MINIMUM_PATH_LENGTH = 12;
+	private static final int MINIMUM_COARSE_TEMPLATE = 4; //Smallest template dimension, in pixels, that is matched on a pyramid level
+	private static final double PREDICTION_CONFIDENCE = 3; //Number of standard deviations of the prediction covered by the ROI
+	private static final int REFINE_MARGIN = 2; //Extra pixels, in full resolution, searched around the coarse match
+
 	public TrackedObject(Rect location, Mat field) {
-		path = new ArrayList<Point>();
+		path = new Trajectory();
+		lastPoint = new Point();
+		fullRenderer = new PathRenderer();
+		cachedRenderer = new PathRenderer();
 		size = location.size();
 		position = location.tl();
 		boundingBox = location.clone();
-		image = field.submat(location);
+		//Keep a copy, since the field's buffer may be overwritten by the next frame
+		image = new Mat();
+		Mat region = field.submat(location);
+		region.copyTo(image);
+		region.release();
 		currentRoi = 0;
 		followed = true;
 		if (size.width < size.height)
@@ -69,30 +89,73 @@ public class TrackedObject {
 		int result_cols =  field.cols() - image.cols() + 1;
 		int result_rows = field.rows() - image.rows() + 1;
 		corrResult = new Mat(result_rows, result_cols, CvType.CV_32FC1);
+		coarseTemplate = new Mat();
+		coarseResult = new Mat();
+		refineRegion = new Rect();
+		tBoundingBox = new Rect();
+		tRoi = new Rect();
 		roi = null;
 		state = STATE_WATCHING;
 		lastDirection = new Point();
 	}
 	
-	//Tenatively updates the position of the object. confirmUpdate() must be called to finalize.
 	public void update(Mat field) {
+		update(field, null);
+	}
+	
+	/* Selects how the ROI for the next update is placed. Either MOTION_AVERAGE or MOTION_KALMAN. */
+	public void setMotionModel(int model) {
+		synchronized(this) {
+			if (model == MOTION_KALMAN) {
+				if (motion == null)
+					motion = new KalmanMotionModel();
+			}
+			else
+				motion = null;
+		}
+	}
+	
+	/* If enabled, positions are refined between pixels by interpolating around the correlation peak.
+	 * The bounding box stays on whole pixels, but the path records the refined position.
+	 */
+	public void setSubPixel(boolean b) {
+		synchronized(this) {
+			subPixel = b;
+		}
+	}
+	
+	/* Tenatively updates the position of the object. confirmUpdate() must be called to finalize.
+	 * pyramid holds successively downsampled copies of field (pyramid.get(0) is field itself).
+	 * If it has more than one level, a lost object is first located on a coarse level
+	 * and then refined in a small window at full resolution. May be null.
+	 */
+	public void update(Mat field, List<Mat> pyramid) {
 		if (state == STATE_DISABLED)
 			return;
+		if (motion != null && !followed && motion.isInitialized())
+			motion.miss(); //The object was lost on the last update
 		//Check the entire image
 		followed = true;
 		if (ROI_SIZE == 0 || roi == null) {
-			Imgproc.matchTemplate(field, image, corrResult, Imgproc.TM_CCORR_NORMED);
-			Core.MinMaxLocResult minMax = Core.minMaxLoc(corrResult);
+			Core.MinMaxLocResult minMax = null;
+			int level = pyramidLevel(pyramid);
+			if (level > 0)
+				minMax = coarseSearch(field, pyramid.get(level), level);
+			if (minMax == null) {
+				Imgproc.matchTemplate(field, image, corrResult, Imgproc.TM_CCORR_NORMED);
+				minMax = Core.minMaxLoc(corrResult);
+				if (subPixel)
+					MathUtils.refinePeak(corrResult, minMax.maxLoc);
+			}
 			
 			tPosition = minMax.maxLoc;
 			if (first) {
 				tPosition = position;
 				first = false;                                             
 			}
-			tBoundingBox = new Rect(tPosition, size);
-			TrackedField.cropRectToMat(tBoundingBox, field);
+			placeBoundingBox(field);
 			tMatch = minMax.maxVal;
-			tImage = field.submat(tBoundingBox);
+			setTentativeImage(field.submat(tBoundingBox));
 			updateRoi(field);
 			//examinePath();
 		}
@@ -100,13 +163,15 @@ public class TrackedObject {
 		else {
 			Mat limitedField = field.submat(roi);
 			Imgproc.matchTemplate(limitedField, image, corrResult, Imgproc.TM_CCORR_NORMED);
+			limitedField.release();
 			Core.MinMaxLocResult minMax = Core.minMaxLoc(corrResult);
+			if (subPixel)
+				MathUtils.refinePeak(corrResult, minMax.maxLoc);
 			tPosition = minMax.maxLoc;
 			tPosition = MathUtils.add(tPosition, roi.tl());
-			tBoundingBox = new Rect(tPosition, size);
-			TrackedField.cropRectToMat(tBoundingBox, field);
+			placeBoundingBox(field);
 			tMatch = minMax.maxVal;
-			tImage = field.submat(tBoundingBox);
+			setTentativeImage(field.submat(tBoundingBox));
 			updateRoi(field);
 			//examinePath();
 		}
@@ -116,11 +181,74 @@ public class TrackedObject {
 		}
 	}
 	
+	//Move the tentative bounding box to tPosition, rounding to the nearest pixel.
+	private void placeBoundingBox(Mat field) {
+		MathUtils.set(tBoundingBox, tPosition, size);
+		if (subPixel) {
+			tBoundingBox.x = (int)Math.round(tPosition.x);
+			tBoundingBox.y = (int)Math.round(tPosition.y);
+		}
+		TrackedField.cropRectToMat(tBoundingBox, field);
+	}
+	
+	//Replace the tentative image, releasing the header of one left behind by an unconfirmed update.
+	private void setTentativeImage(Mat submat) {
+		if (tImage != null)
+			tImage.release();
+		tImage = submat;
+	}
+	
+	//True if the next update will search the entire field, which is the only search that uses the pyramid.
+	boolean needsFullSearch() {
+		return state != STATE_DISABLED && (ROI_SIZE == 0 || roi == null);
+	}
+	
+	//Return the coarsest usable pyramid level, at which the template is still large enough to match.
+	private int pyramidLevel(List<Mat> pyramid) {
+		if (pyramid == null)
+			return 0;
+		int level = pyramid.size() - 1;
+		double smallest = Math.min(image.cols(), image.rows());
+		while (level > 0 && (smallest / (1 << level)) < MINIMUM_COARSE_TEMPLATE)
+			level --;
+		return level;
+	}
+	
+	/* Locate the template on a downsampled level, then search a small full resolution window around it.
+	 * Returns null if the refinement window cannot hold the template.
+	 */
+	private Core.MinMaxLocResult coarseSearch(Mat field, Mat coarse, int level) {
+		int scale = 1 << level;
+		//Downsample the template the same way the field was downsampled
+		Imgproc.pyrDown(image, coarseTemplate);
+		for (int i = 1; i < level; i ++)
+			Imgproc.pyrDown(coarseTemplate, coarseTemplate);
+		Imgproc.matchTemplate(coarse, coarseTemplate, coarseResult, Imgproc.TM_CCORR_NORMED);
+		Point coarseLoc = Core.minMaxLoc(coarseResult).maxLoc;
+		
+		int margin = scale + REFINE_MARGIN;
+		refineRegion.x = (int)(coarseLoc.x * scale) - margin;
+		refineRegion.y = (int)(coarseLoc.y * scale) - margin;
+		refineRegion.width = image.cols() + margin * 2;
+		refineRegion.height = image.rows() + margin * 2;
+		TrackedField.cropRectToMat(refineRegion, field);
+		if (refineRegion.width < image.cols() || refineRegion.height < image.rows())
+			return null;
+		Mat refineField = field.submat(refineRegion);
+		Imgproc.matchTemplate(refineField, image, corrResult, Imgproc.TM_CCORR_NORMED);
+		refineField.release();
+		Core.MinMaxLocResult minMax = Core.minMaxLoc(corrResult);
+		if (subPixel)
+			MathUtils.refinePeak(corrResult, minMax.maxLoc);
+		MathUtils.add(minMax.maxLoc, refineRegion.tl());
+		return minMax;
+	}
+	
 	public void updateRoi(Mat field) {
 		//System.out.println("UPDATE ROI");
 		double range = newStepDistance() * ROI_SIZE * 2;
 		if (tCurrentRoi != 0) {
-			int totalPts = path.size();
+			int totalPts = path.length();
 			if (totalPts > ROI_VARIABILITY)
 				totalPts = ROI_VARIABILITY;
 			tCurrentRoi = (currentRoi * (totalPts) + range) / (totalPts + 1);
@@ -134,13 +262,28 @@ public class TrackedObject {
 		int roiY = (int)(tPosition.y + size.height / 2);
 		int roiSizeX = (int) ((roiSize < size.width + MINIMUM_ABSOLUTE_ROI) ? size.width + MINIMUM_ABSOLUTE_ROI : roiSize);
 		int roiSizeY = (int) ((roiSize < size.height + MINIMUM_ABSOLUTE_ROI) ? size.height + MINIMUM_ABSOLUTE_ROI : roiSize);
-		tRoi = MathUtils.createCenteredRect(roiX, roiY, roiSizeX, roiSizeY);
+		if (motion != null) {
+			//Center on the predicted position, and shrink the ROI as far as the prediction's uncertainty allows.
+			//The ROI never grows beyond what the average step distance would give.
+			if (!motion.isInitialized())
+				motion.reset(position != null ? position : tPosition, lastDirection);
+			Point next = motion.predict(tPosition);
+			roiX = (int)(next.x + size.width / 2);
+			roiY = (int)(next.y + size.height / 2);
+			int predictedX = (int)(size.width + MINIMUM_ABSOLUTE_ROI + 2 * PREDICTION_CONFIDENCE * motion.getUncertaintyX());
+			int predictedY = (int)(size.height + MINIMUM_ABSOLUTE_ROI + 2 * PREDICTION_CONFIDENCE * motion.getUncertaintyY());
+			if (predictedX < roiSizeX)
+				roiSizeX = predictedX;
+			if (predictedY < roiSizeY)
+				roiSizeY = predictedY;
+		}
+		MathUtils.setCenteredRect(tRoi, roiX, roiY, roiSizeX, roiSizeY);
 		TrackedField.cropRectToMat(tRoi, field);
 		//System.out.println(tRoi);
 	}
 	
 	public void examinePath() {
-		if (path.size() < MINIMUM_PATH_LENGTH)
+		if (path.length() < MINIMUM_PATH_LENGTH)
 			return;
 		Point current = new Point();
 		MathUtils.set(current, position, tPosition);
@@ -160,6 +303,11 @@ public class TrackedObject {
 		return MathUtils.dist(position, tPosition);
 	}
 	
+	//Top left of the position found by the last update, or null if the object has not been updated.
+	Point tentativePosition() {
+		return tPosition;
+	}
+	
 	public boolean newPosInFov(Point center, double radius) {
 		return MathUtils.circleContainsRect(tBoundingBox, center, radius);
 	}
@@ -200,12 +348,24 @@ public class TrackedObject {
 			if (position != null)
 				MathUtils.set(lastDirection, position, tPosition);
 			position = tPosition;
+			//Swap the confirmed and tentative rects so the next update can reuse them without allocating
+			Rect swap = boundingBox;
 			boundingBox = tBoundingBox;
+			tBoundingBox = swap;
+			swap = (roi == null) ? new Rect() : roi;
 			roi = tRoi;
+			tRoi = swap;
 			currentRoi = tCurrentRoi;
-			image = tImage;
+			if (motion != null)
+				motion.confirm();
+			//Copy out of the field, which the next frame may overwrite in place
+			if (tImage != null) {
+				tImage.copyTo(image);
+				tImage.release();
+				tImage = null;
+			}
 			if (state == STATE_TRACKING)
-				path.add(MathUtils.getRectCenter(position, size));
+				path.add(position.x + size.width / 2, position.y + size.height / 2);
 			lostCounter = 0;
 		}
 	}
@@ -215,7 +375,7 @@ public class TrackedObject {
 			if (state == STATE_DISABLED)
 				return;
 			if (state == STATE_TRACKING)
-				path.add(null);
+				path.addLost();
 			followed = false;
 			lostCounter ++;
 			if (lostCounter > AUTO_DISABLE)
@@ -223,7 +383,21 @@ public class TrackedObject {
 		}
 	}
 	
+	//Draw the object's markers and its entire path.
 	public void drawInfo(Mat display) {
+		synchronized(this) {
+			if (state == STATE_DISABLED)
+				return;
+			if (state == STATE_TRACKING) {
+				fullRenderer.reset();
+				fullRenderer.render(path, display, null);
+			}
+			drawMarkers(display);
+		}
+	}
+	
+	//Draw the bounding box and roi.
+	public void drawMarkers(Mat display) {
 		synchronized(this) {
 			if (state == STATE_DISABLED)
 				return;
@@ -231,25 +405,6 @@ public class TrackedObject {
 				Core.rectangle(display, boundingBox.tl(), boundingBox.br(), Colors.RED, 1);
 			else
 				Core.rectangle(display, boundingBox.tl(), boundingBox.br(), Colors.GREEN, 1);
-			if (state == STATE_TRACKING) {
-				Point last = path.get(0);
-				boolean jump = false;
-				for (int i = 1; i < path.size(); i ++) {
-					if (path.get(i) != null && last != null) {
-						if (jump) {
-							Core.line(display, path.get(i), last, Colors.RED);
-							jump = false;
-						}
-						else
-							Core.line(display, path.get(i), last, Colors.GREEN);
-						last = path.get(i);
-					}
-					else
-						jump = true;
-					if (last == null)
-						last = path.get(i);
-				}
-			}
 			if (roi != null)
 				Core.rectangle(display, roi.tl(), roi.br(), Colors.BLUE);
 			if (!followed) {
@@ -259,9 +414,79 @@ public class TrackedObject {
 		}
 	}
 	
+	/* Draw only the path segments added since the last call onto overlay, marking the drawn pixels in mask.
+	 * Returns false without drawing if the path should not be visible.
+	 */
+	public boolean drawNewPath(Mat overlay, Mat mask) {
+		synchronized(this) {
+			if (!pathVisible())
+				return false;
+			cachedRenderer.render(path, overlay, mask);
+			return true;
+		}
+	}
+	
+	/* Start drawNewPath() over from the beginning of the path. */
+	public void resetPathDrawing() {
+		synchronized(this) {
+			cachedRenderer.reset();
+		}
+	}
+	
+	public boolean pathVisible() {
+		return state == STATE_TRACKING;
+	}
+	
+	/*
+	 * Draws a path incrementally. Segments are green, except for the first segment after
+	 * the object was lost, which is red.
+	 */
+	private static class PathRenderer {
+		private int drawn; //Number of path points that have been processed
+		private boolean hasLast, jump;
+		private final Point start, end;
+		
+		private static final Scalar MASK = new Scalar(255);
+		
+		PathRenderer() {
+			start = new Point();
+			end = new Point();
+		}
+		
+		void reset() {
+			drawn = 0;
+			hasLast = jump = false;
+		}
+		
+		void render(Trajectory path, Mat display, Mat mask) {
+			int length = path.length();
+			if (drawn == 0 && length > 0) {
+				hasLast = path.get(0, start) != null;
+				drawn = 1;
+			}
+			for (int i = drawn; i < length; i ++) {
+				boolean lost = path.isLost(i);
+				if (!lost && hasLast) {
+					path.get(i, end);
+					Core.line(display, end, start, jump ? Colors.RED : Colors.GREEN);
+					if (mask != null)
+						Core.line(mask, end, start, MASK);
+					jump = false;
+					MathUtils.set(start, end);
+				}
+				else
+					jump = true;
+				if (!hasLast && !lost) {
+					path.get(i, start);
+					hasLast = true;
+				}
+			}
+			drawn = length;
+		}
+	}
+	
 	public void addNullPath(int steps) {
-		for (int i = 0; i < steps; i ++)
-			path.add(null);
+		path.addLost(steps);
 	}
 	
 	
@@ -270,7 +495,7 @@ public class TrackedObject {
 			if (state == STATE_DISABLED)
 				return;
 			if (b) {
-				path.add(MathUtils.getRectCenter(position, size));
+				path.add(position.x + size.width / 2, position.y + size.height / 2);
 				state = STATE_TRACKING;
 			}
 			else
@@ -293,10 +518,11 @@ public class TrackedObject {
 		path.clear();
 	}
 	
+	/* Returns the last point in the path, or null if the object was lost.
+	 * The returned Point is reused by the next call.
+	 */
 	public Point lastPathPoint() {
-		if (path.isEmpty())
-			return null;
-		return path.get(path.size() - 1);
+		return path.getLast(lastPoint);
 	}
 	
 	public boolean followed() {
@@ -0,0 +1,195 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Streams TrackedField's output to a CSV file as tracking runs, instead of holding every row in memory.
+ * Rows are queued by the update thread and written on a background thread, which flushes the file
+ * periodically so that a crash loses at most the last few rows.
+ *
+ * File layout:
+ * 	title
+ * 	(blank)
+ * 	time,x0,y0,x1,y1,...
+ * 	one row per update, with ? for objects that were lost
+ * 	(blank)
+ * 	summary written by close()
+ * A new header line, preceded by a blank line, is written whenever the number of objects in a row changes.
+ * Opening the writer again after close() appends to the file, starting with a new header.
+ */
+public class TrackingCsvWriter {
+	private final File file;
+	private final String title;
+	private BufferedWriter writer;
+	private ScheduledExecutorService writeThread, closingThread;
+	private final ConcurrentLinkedQueue<Row> pending;
+	private final ConcurrentLinkedQueue<Row> recycled;	//Rows that have been written, reused to avoid allocation
+	private final StringBuilder line;					//Only used on the write thread
+	private char[] chars;
+	private boolean created;		//true once the file and title have been written
+	private int columns;			//Number of objects in the last header written, or -1 if a header is due; only used on the write thread
+
+	private static final int FLUSH_INTERVAL = 1000; //Milliseconds between each write to disk
+	private static final String LOST = "?";
+
+	public TrackingCsvWriter(File f, String t) {
+		file = f;
+		title = t;
+		pending = new ConcurrentLinkedQueue<Row>();
+		recycled = new ConcurrentLinkedQueue<Row>();
+		line = new StringBuilder();
+		chars = new char[0];
+	}
+
+	public boolean isOpen() {
+		return writeThread != null;
+	}
+
+	/* Create the file and write the title, or reopen it for appending after close(), and start the write thread.
+	 * The table header is written with the first row.
+	 */
+	public void open() {
+		if (isOpen())
+			return;
+		if (closingThread != null) {
+			//Let the last close() finish writing before the file is reopened
+			try {
+				closingThread.awaitTermination(FLUSH_INTERVAL * 10, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			closingThread = null;
+		}
+		try {
+			writer = new BufferedWriter(new FileWriter(file, created));
+			if (!created) {
+				writer.write(title);
+				writer.newLine();
+			}
+			created = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		columns = -1;
+		writeThread = Executors.newSingleThreadScheduledExecutor();
+		Runnable flusher = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+		writeThread.scheduleWithFixedDelay(flusher, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/* Queue a row. coords holds x, y pairs for each object, with NaN for objects that were lost.
+	 * Only the first count values are used, and they are copied, so coords may be reused.
+	 */
+	public void addRow(long time, double[] coords, int count) {
+		if (!isOpen())
+			return;
+		Row row = recycled.poll();
+		if (row == null)
+			row = new Row();
+		row.set(time, coords, count);
+		pending.add(row);
+	}
+
+	/* Write everything queued so far to disk. */
+	public void flush() {
+		if (!isOpen())
+			return;
+		writeThread.execute(new Runnable() {
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	/* Write the remaining rows followed by summary, then close the file. It can be reopened with open(). */
+	public void close(final String summary) {
+		if (!isOpen())
+			return;
+		writeThread.execute(new Runnable() {
+			public void run() {
+				drain();
+				try {
+					writer.newLine();
+					writer.write(summary);
+					writer.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		writeThread.shutdown();
+		closingThread = writeThread;
+		writeThread = null;
+	}
+
+	//Runs on the write thread
+	private void drain() {
+		try {
+			Row row;
+			while ((row = pending.poll()) != null) {
+				if (row.count / 2 != columns)
+					writeHeader(row.count / 2);
+				line.setLength(0);
+				line.append(row.time).append(',');
+				for (int i = 0; i < row.count; i ++) {
+					if (Double.isNaN(row.values[i]))
+						line.append(LOST);
+					else
+						line.append(row.values[i]);
+					line.append(',');
+				}
+				writeLine();
+				recycled.add(row);
+			}
+			writer.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	//Start a new table for rows of objectCount objects
+	private void writeHeader(int objectCount) throws IOException {
+		writer.newLine();
+		line.setLength(0);
+		line.append("time,");
+		for (int i = 0; i < objectCount; i ++)
+			line.append('x').append(i).append(",y").append(i).append(',');
+		writeLine();
+		columns = objectCount;
+	}
+
+	//Write the contents of line without creating a String
+	private void writeLine() throws IOException {
+		int length = line.length();
+		if (chars.length < length)
+			chars = new char[length * 2];
+		line.getChars(0, length, chars, 0);
+		writer.write(chars, 0, length);
+		writer.newLine();
+	}
+
+	private static class Row {
+		long time;
+		double[] values = new double[0];
+		int count;
+
+		void set(long t, double[] coords, int c) {
+			time = t;
+			count = c;
+			if (values.length < c)
+				values = new double[c];
+			System.arraycopy(coords, 0, values, 0, c);
+		}
+	}
+}
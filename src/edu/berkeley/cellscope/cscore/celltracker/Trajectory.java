@@ -0,0 +1,104 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.util.BitSet;
+
+import org.opencv.core.Point;
+
+/*
+ * Compact record of an object's position over time.
+ * Coordinates are kept in growable float arrays, and frames where the object was lost
+ * are marked in a BitSet instead of being stored as null Points.
+ */
+public class Trajectory {
+	private float[] x, y;
+	private final BitSet lost;
+	private int length;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	public Trajectory() {
+		x = new float[INITIAL_CAPACITY];
+		y = new float[INITIAL_CAPACITY];
+		lost = new BitSet();
+		length = 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= x.length)
+			return;
+		int newCapacity = x.length * 2;
+		if (newCapacity < capacity)
+			newCapacity = capacity;
+		float[] newX = new float[newCapacity];
+		float[] newY = new float[newCapacity];
+		System.arraycopy(x, 0, newX, 0, length);
+		System.arraycopy(y, 0, newY, 0, length);
+		x = newX;
+		y = newY;
+	}
+
+	public void add(double px, double py) {
+		ensureCapacity(length + 1);
+		x[length] = (float)px;
+		y[length] = (float)py;
+		length ++;
+	}
+
+	public void add(Point pt) {
+		if (pt == null)
+			addLost();
+		else
+			add(pt.x, pt.y);
+	}
+
+	/* Record a frame in which the object's position is unknown. */
+	public void addLost() {
+		ensureCapacity(length + 1);
+		lost.set(length);
+		length ++;
+	}
+
+	public void addLost(int frames) {
+		for (int i = 0; i < frames; i ++)
+			addLost();
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public boolean isEmpty() {
+		return length == 0;
+	}
+
+	public boolean isLost(int i) {
+		return lost.get(i);
+	}
+
+	public float getX(int i) {
+		return x[i];
+	}
+
+	public float getY(int i) {
+		return y[i];
+	}
+
+	/* Store position i in pt. Returns null if the object was lost at i. */
+	public Point get(int i, Point pt) {
+		if (isLost(i))
+			return null;
+		return MathUtils.set(pt, x[i], y[i]);
+	}
+
+	/* Store the last position in pt. Returns null if the trajectory is empty or the object was last lost. */
+	public Point getLast(Point pt) {
+		if (length == 0)
+			return null;
+		return get(length - 1, pt);
+	}
+
+	public void clear() {
+		length = 0;
+		lost.clear();
+	}
+}
@@ -0,0 +1,218 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+
+/*
+ * Binary file format for tracked trajectories. All values are big-endian.
+ *
+ * Header:
+ * 	int		MAGIC
+ * 	int		VERSION
+ * 	UTF		title (2 byte length, then modified UTF-8, as written by DataOutputStream.writeUTF)
+ * 	int		number of objects
+ * 	int		number of frames
+ * 	double	fov center x, fov center y
+ * 	int		fov radius
+ * Times:
+ * 	long[frames]	time of each frame, in millis since tracking started
+ * One column per object:
+ * 	float	width, height
+ * 	float[frames]	x of the object's center
+ * 	float[frames]	y of the object's center
+ * 	byte[(frames + 7) / 8]	bit i of byte i / 8 (least significant first) is set if the object was lost in frame i
+ *
+ * Files are read with Reader, which memory-maps the file rather than loading it.
+ */
+public class TrajectoryFile {
+	public static final int MAGIC = 0x4353544A; //"CSTJ"
+	public static final int VERSION = 1;
+
+	public static void write(File file, String title, long[] times, int frames, List<Trajectory> trajectories,
+			List<Size> sizes, Point center, int radius) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(title == null ? "" : title);
+			out.writeInt(trajectories.size());
+			out.writeInt(frames);
+			out.writeDouble(center.x);
+			out.writeDouble(center.y);
+			out.writeInt(radius);
+			for (int i = 0; i < frames; i ++)
+				out.writeLong(times[i]);
+			byte[] lost = new byte[(frames + 7) / 8];
+			for (int o = 0; o < trajectories.size(); o ++) {
+				Trajectory t = trajectories.get(o);
+				Size s = sizes.get(o);
+				out.writeFloat((float)s.width);
+				out.writeFloat((float)s.height);
+				//Trajectories shorter than the number of frames are padded as lost
+				for (int i = 0; i < frames; i ++)
+					out.writeFloat(i < t.length() ? t.getX(i) : 0);
+				for (int i = 0; i < frames; i ++)
+					out.writeFloat(i < t.length() ? t.getY(i) : 0);
+				for (int i = 0; i < lost.length; i ++)
+					lost[i] = 0;
+				for (int i = 0; i < frames; i ++)
+					if (i >= t.length() || t.isLost(i))
+						lost[i / 8] |= 1 << (i % 8);
+				out.write(lost);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/* Memory-mapped view of a trajectory file. */
+	public static class Reader {
+		private final MappedByteBuffer buffer;
+		private final String title;
+		private final int objects, frames;
+		private final Point center;
+		private final int radius;
+		private final int timesOffset, columnsOffset, columnSize;
+
+		public Reader(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				raf.close(); //The mapping stays valid after the file is closed
+			}
+			if (buffer.getInt() != MAGIC)
+				throw new IOException("Not a trajectory file: " + file);
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported trajectory file version " + version);
+			//The title is in modified UTF-8, which only DataInput decodes correctly
+			byte[] utf = new byte[2 + (buffer.getShort(buffer.position()) & 0xffff)];
+			buffer.get(utf);
+			title = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+			objects = buffer.getInt();
+			frames = buffer.getInt();
+			center = new Point(buffer.getDouble(), buffer.getDouble());
+			radius = buffer.getInt();
+			timesOffset = buffer.position();
+			columnsOffset = timesOffset + frames * 8;
+			columnSize = 8 + frames * 8 + (frames + 7) / 8;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public int getObjectCount() {
+			return objects;
+		}
+
+		public int getFrameCount() {
+			return frames;
+		}
+
+		public Point getFovCenter() {
+			return center;
+		}
+
+		public int getFovRadius() {
+			return radius;
+		}
+
+		public long getTime(int frame) {
+			return buffer.getLong(timesOffset + frame * 8);
+		}
+
+		private int column(int object) {
+			return columnsOffset + object * columnSize;
+		}
+
+		public Size getSize(int object) {
+			int c = column(object);
+			return new Size(buffer.getFloat(c), buffer.getFloat(c + 4));
+		}
+
+		public float getX(int object, int frame) {
+			return buffer.getFloat(column(object) + 8 + frame * 4);
+		}
+
+		public float getY(int object, int frame) {
+			return buffer.getFloat(column(object) + 8 + frames * 4 + frame * 4);
+		}
+
+		public boolean isLost(int object, int frame) {
+			int b = buffer.get(column(object) + 8 + frames * 8 + frame / 8);
+			return (b & (1 << (frame % 8))) != 0;
+		}
+
+		/* Load one object's column into a Trajectory. */
+		public Trajectory readTrajectory(int object) {
+			Trajectory t = new Trajectory();
+			for (int i = 0; i < frames; i ++) {
+				if (isLost(object, i))
+					t.addLost();
+				else
+					t.add(getX(object, i), getY(object, i));
+			}
+			return t;
+		}
+
+		/* Write the contents in the CSV layout produced by TrackingCsvWriter. */
+		public void exportCsv(File file) throws IOException {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+			try {
+				StringBuilder line = new StringBuilder();
+				writer.write(title);
+				writer.newLine();
+				writer.newLine();
+				line.append("time,");
+				for (int o = 0; o < objects; o ++)
+					line.append('x').append(o).append(",y").append(o).append(',');
+				writer.write(line.toString());
+				writer.newLine();
+				for (int i = 0; i < frames; i ++) {
+					line.setLength(0);
+					line.append(getTime(i)).append(',');
+					for (int o = 0; o < objects; o ++) {
+						if (isLost(o, i))
+							line.append("?,?,");
+						else
+							line.append(getX(o, i)).append(',').append(getY(o, i)).append(',');
+					}
+					writer.write(line.toString());
+					writer.newLine();
+				}
+				writer.newLine();
+				writer.write("id,width,height");
+				writer.newLine();
+				for (int o = 0; o < objects; o ++) {
+					Size dim = getSize(o);
+					writer.write(o + "," + dim.width + "," + dim.height + ",");
+					writer.newLine();
+				}
+				writer.newLine();
+				writer.write("fov center," + center.x + "," + center.y + ",");
+				writer.newLine();
+				writer.write("fov radius," + radius + ",");
+				writer.newLine();
+			} finally {
+				writer.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package edu.berkeley.cellscope.cscore.celltracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+
+import edu.berkeley.cellscope.cscore.cameraui.TouchSwipeControl;
+
+/*
+ * Captures a z-stack: a series of frames at evenly spaced Z positions, centered on the current position.
+ * Run it after Autofocus, so that the stack is centered on the focus peak.
+ * Each slice is passed to the callbacks as it is captured, and fused into an all-in-focus image by a FocusStacker,
+ * so the stack is never held in memory. The stage returns to its starting position once the stack is complete.
+ * The stage first moves APPROACH steps below the lowest slice and comes back up to it, so that every slice is reached
+ * moving up, and Z backlash is taken up before the first slice instead of shortening the gap to the second.
+ *
+ * Like Autofocus, continueRunning() must be called whenever the stage reports that it has finished moving.
+ */
+public class ZStackCapture implements RealtimeImageProcessor {
+	private final TouchSwipeControl stage;
+	private final FocusStacker stacker;
+	private final List<ZStackCallback> callbacks;
+	private boolean busy, approaching, returning;
+	private int sliceCount, spacing;
+	private int slice; //Index of the next slice to capture
+	private int zPosition; //Steps above the starting position
+	private int firstSlice; //Position of the lowest slice
+	private int moveRemaining, moveDirection;
+	private int waitFrames;
+
+	private static final int PAUSE = 3; //Number of frames to wait after motion stops for the camera to catch up.
+	private static final int NO_CAPTURE = -1;
+	private static final int MAX_SWIPE = 127; //Largest number of steps in one command
+	private static final int APPROACH = 32; //Steps below the lowest slice to start from; more than the Z backlash
+	public static final int DEFAULT_SLICES = 9;
+	public static final int DEFAULT_SPACING = 8;
+	public static final String SUCCESS_MESSAGE = "Z-stack captured";
+	public static final String FAILURE_MESSAGE = "Z-stack failed";
+
+	public ZStackCapture(TouchSwipeControl s) {
+		this(s, new FocusStacker());
+	}
+
+	public ZStackCapture(TouchSwipeControl s, FocusStacker f) {
+		stage = s;
+		stacker = f;
+		callbacks = new ArrayList<ZStackCallback>();
+		sliceCount = DEFAULT_SLICES;
+		spacing = DEFAULT_SPACING;
+		waitFrames = NO_CAPTURE;
+	}
+
+	/* Capture n slices, each separated by the given number of steps. Takes effect on the next start(). */
+	public void setStack(int n, int steps) {
+		sliceCount = n;
+		spacing = steps;
+	}
+
+	public void addCallback(ZStackCallback c) {
+		callbacks.add(c);
+	}
+
+	public void removeCallback(ZStackCallback c) {
+		callbacks.remove(c);
+	}
+
+	public boolean isRunning() {
+		return busy;
+	}
+
+	public synchronized void start() {
+		if (busy || !stage.bluetoothConnected())
+			return;
+		busy = true;
+		returning = false;
+		approaching = true;
+		slice = 0;
+		zPosition = 0;
+		stacker.reset();
+		System.out.println("begin z-stack of " + sliceCount + " slices");
+		firstSlice = (int)Math.round(-spacing * (sliceCount - 1) / 2.0); //Even counts straddle the starting position
+		moveTo(firstSlice - APPROACH);
+	}
+
+	public synchronized void stop() {
+		if (!busy)
+			return;
+		finish(false);
+	}
+
+	//Called whenever the stage finishes moving.
+	public synchronized void continueRunning() {
+		if (!busy)
+			return;
+		if (!stage.bluetoothConnected()) {
+			finish(false);
+			return;
+		}
+		continueMove();
+	}
+
+	public synchronized void processFrame(Mat mat) {
+		if (!busy || waitFrames == NO_CAPTURE)
+			return;
+		if (waitFrames > 0) {
+			waitFrames --;
+			return;
+		}
+		waitFrames = NO_CAPTURE;
+		stacker.addSlice(mat);
+		for (ZStackCallback c: callbacks)
+			c.sliceCaptured(slice, zPosition, mat);
+		slice ++;
+		if (slice < sliceCount)
+			moveTo(zPosition + spacing);
+		else {
+			returning = true;
+			moveTo(0);
+		}
+	}
+
+	public void displayFrame(Mat mat) {
+		return;
+	}
+
+	private void moveTo(int z) {
+		int delta = z - zPosition;
+		zPosition = z;
+		moveDirection = delta > 0 ? TouchSwipeControl.zPositive : TouchSwipeControl.zNegative;
+		moveRemaining = Math.abs(delta);
+		waitFrames = NO_CAPTURE;
+		continueMove();
+	}
+
+	//Send the next part of the current move, or prepare to capture once the move is done.
+	private void continueMove() {
+		if (moveRemaining == 0) {
+			if (returning)
+				finish(true);
+			else if (approaching) {
+				approaching = false;
+				moveTo(firstSlice);
+			} else
+				waitFrames = PAUSE;
+			return;
+		}
+		int steps = Math.min(moveRemaining, MAX_SWIPE);
+		moveRemaining -= steps;
+		stage.swipe(moveDirection, steps);
+	}
+
+	private void finish(boolean success) {
+		busy = false;
+		waitFrames = NO_CAPTURE;
+		System.out.println("z-stack " + (success ? "complete" : "failed") + " after " + stacker.getSliceCount() + " slices");
+		for (ZStackCallback c: callbacks)
+			c.stackComplete(success, stacker.getResult());
+	}
+
+	public static interface ZStackCallback {
+		/* Called as each slice is captured. z is in steps relative to the starting position. slice is only valid during the call. */
+		public void sliceCaptured(int index, int z, Mat slice);
+
+		/* fused is the all-in-focus image of the slices captured so far. It is reused by the next stack. */
+		public void stackComplete(boolean success, Mat fused);
+	}
+}
@@ -0,0 +1,128 @@
+package edu.berkeley.cellscope.cscore.celltracker.mobilestage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Point;
+
+import edu.berkeley.cellscope.cscore.celltracker.MathUtils;
+
+/**
+ * Chooses as few fov centers as possible so that every object is within reach of one of them.
+ * 1.	Candidate centers are the points of a square grid, with a spacing of half the reach,
+ * 		that lie within reach of at least one object. Every object has one within 0.36 of the reach.
+ * 2.	Greedy set cover: the candidate that reaches the most objects not yet covered is chosen, until all are covered.
+ * 3.	Each chosen center is moved to the middle of its objects, if they all stay within reach,
+ * 		so they are kept away from the edge of the fov.
+ * Greedy set cover uses at most ln(n) + 1 times as many centers as the best possible cover.
+ */
+public class FovClusterer {
+	private double reach;
+
+	private static final double SPACING = 0.5; //Grid spacing, relative to reach
+
+	public FovClusterer(double r) {
+		reach = r;
+	}
+
+	public void setReach(double r) {
+		reach = r;
+	}
+
+	public List<TourPlanner.Stop> cluster(List<MobileObj> objects) {
+		List<TourPlanner.Stop> stops = new ArrayList<TourPlanner.Stop>();
+		int n = objects.size();
+		if (n == 0)
+			return stops;
+		if (reach <= 0) {
+			for (MobileObj obj: objects) {
+				TourPlanner.Stop s = new TourPlanner.Stop(obj.getAbsoluteLocation().clone());
+				s.objects.add(obj);
+				stops.add(s);
+			}
+			return stops;
+		}
+		//Find which objects each candidate reaches
+		double spacing = reach * SPACING;
+		double r2 = reach * reach;
+		int span = (int)Math.ceil(reach / spacing);
+		Map<Long, Candidate> candidates = new HashMap<Long, Candidate>();
+		for (int o = 0; o < n; o ++) {
+			Point p = objects.get(o).getAbsoluteLocation();
+			int cx = (int)Math.round(p.x / spacing), cy = (int)Math.round(p.y / spacing);
+			for (int i = cx - span; i <= cx + span; i ++) {
+				for (int j = cy - span; j <= cy + span; j ++) {
+					double dx = i * spacing - p.x, dy = j * spacing - p.y;
+					if (dx * dx + dy * dy > r2)
+						continue;
+					long key = ((long)i << 32) | (j & 0xffffffffL);
+					Candidate c = candidates.get(key);
+					if (c == null) {
+						c = new Candidate(i * spacing, j * spacing);
+						candidates.put(key, c);
+					}
+					c.objects.add(o);
+				}
+			}
+		}
+		List<Candidate> pool = new ArrayList<Candidate>(candidates.values());
+
+		//Greedy set cover
+		boolean[] covered = new boolean[n];
+		int remaining = n;
+		while (remaining > 0) {
+			Candidate best = null;
+			int bestCount = 0;
+			for (Candidate c: pool) {
+				int count = 0;
+				for (int o: c.objects)
+					if (!covered[o])
+						count ++;
+				if (count > bestCount) {
+					best = c;
+					bestCount = count;
+				}
+			}
+			TourPlanner.Stop s = new TourPlanner.Stop(new Point(best.x, best.y));
+			for (int o: best.objects) {
+				if (!covered[o]) {
+					covered[o] = true;
+					remaining --;
+					s.objects.add(objects.get(o));
+				}
+			}
+			pool.remove(best);
+			recenter(s, r2);
+			stops.add(s);
+		}
+		return stops;
+	}
+
+	//Move the stop to the centroid of its objects if none of them would be out of reach.
+	private static void recenter(TourPlanner.Stop s, double r2) {
+		double x = 0, y = 0;
+		for (MobileObj obj: s.objects) {
+			Point p = obj.getAbsoluteLocation();
+			x += p.x;
+			y += p.y;
+		}
+		Point centroid = new Point(x / s.objects.size(), y / s.objects.size());
+		for (MobileObj obj: s.objects)
+			if (MathUtils.distSqr(centroid, obj.getAbsoluteLocation()) > r2)
+				return;
+		MathUtils.set(s.location, centroid);
+	}
+
+	private static class Candidate {
+		final double x, y;
+		final List<Integer> objects;
+
+		Candidate(double cx, double cy) {
+			x = cx;
+			y = cy;
+			objects = new ArrayList<Integer>();
+		}
+	}
+}
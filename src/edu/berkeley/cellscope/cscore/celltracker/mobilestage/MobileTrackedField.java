@@ -5,9 +5,6 @@ import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
@@ -19,9 +16,10 @@ import edu.berkeley.cellscope.cscore.celltracker.StepNavigator;
 
 /**
  * Track objects across several fovs.
- * The travelling-salesman problem is solved using a greedy algorithm.
+ * The travelling-salesman problem is solved once per cycle by TourPlanner, which groups objects
+ * that share a fov into one stop and orders the stops by the stage's travel time.
  * 1. 	Image of starting fov and initial set of objects
- * 2. 	Move to the closest unchecked object
+ * 2. 	Move to the next stop of the tour
  * 3. 	Record new fov
  * 4. 	Calculate new fov's offset from old fov (current object's fov)
  * 5. 	Calculate the expected positions of the old fov's objects
@@ -32,8 +30,8 @@ import edu.berkeley.cellscope.cscore.celltracker.StepNavigator;
  * 		Ignore objects that have already been found.
  * 7. 	Of remaining objects, locate their positions in the new fov.
  * 		Marked these objects as found.
- * 8.	Move to the next closest unfound object and repeat steps 3-8.
- * 9.	When all objects are found, mark all objects as not found and begin again
+ * 8.	Move to the next stop and repeat steps 3-8.
+ * 9.	When all objects are found, mark all objects as not found, plan a new tour and begin again
  * 			at step 2.
  */
 public class MobileTrackedField implements RealtimeImageProcessor, StepNavigator.NavigationCallback {
@@ -44,12 +42,15 @@ public class MobileTrackedField implements RealtimeImageProcessor, StepNavigator
 	private MobileFov currentFov;	//fov used in the last update
 	private double radius;
 	private StepNavigator navigator;
+	private TourPlanner tourPlanner;
+	private Point location;			//absolute location of the stage, relative to the starting fov
 	private int interval;
 	private Mat currentFrame; //the frame inside currentFov
 	private Mat nextFrame;	//queue the next frame to use
 	private long nextTime;
 	private boolean waitForNavigation, waitForFrame;
 	private final Point navigationMoved, navigationError;
+	private boolean navigationMeasured; //false if the last navigation's motion was only predicted
 		//stores where the navigator moved to, and how far off it was from its original intended target
 	
 	
@@ -58,6 +59,7 @@ public class MobileTrackedField implements RealtimeImageProcessor, StepNavigator
 
 	private static final int INITIAL_DELAY = 500;
 	private static final int DEFAULT_INTERVAL = 250;
+	private static final double COVER_FRACTION = 0.8; //Objects closer to a stop than this fraction of the radius are expected to stay in its fov
 	
 	
 	public MobileTrackedField(StepNavigator nav) {
@@ -67,6 +69,8 @@ public class MobileTrackedField implements RealtimeImageProcessor, StepNavigator
 		active = false;
 		navigator = nav;
 		navigator.addCallback(this);
+		tourPlanner = new TourPlanner(nav.getCalibrator(), nav.getPlanner(), 0);
+		location = new Point();
 		frameLock = new Object();
 		navigationMoved = new Point();
 		navigationError = new Point();
@@ -76,6 +80,8 @@ public class MobileTrackedField implements RealtimeImageProcessor, StepNavigator
 		currentFrame = img;
 		Point start = new Point(0, 0);
 		this.radius = radius;
+		tourPlanner.setCoverRadius(radius * COVER_FRACTION);
+		MathUtils.set(location, start);
 		currentFov = new MobileFov(center, radius, img, start, time);
 	}
 	
@@ -93,24 +99,8 @@ public class MobileTrackedField implements RealtimeImageProcessor, StepNavigator
 		}
 	}
 	
-	/**
-	 * Travelling salesman problem: given the position of the current fov,
-	 * calculate the position of the next object to move to.
-	 * Greedy: finds the closest object not yet found to move to.
-	 */
-	private Point nextTargetLocation() {
-		Point currentLoc = currentFov.getAbsoluteLocation();
-		double bestDistSqr = -1;
-		Point bestTargetLoc = null;
-		for (MobileObj obj: notFound) {
-			Point objLoc = obj.getAbsoluteLocation();
-			double distSqr = MathUtils.distSqr(currentLoc, objLoc);
-			if (bestDistSqr == -1 || distSqr < bestDistSqr) {
-				bestTargetLoc = objLoc;
-				bestDistSqr = distSqr;
-			}
-		}
-		return bestTargetLoc;
+	public TourPlanner getTourPlanner() {
+		return tourPlanner;
 	}
 	
 	//Return a list of objects that we expect to find in this (absolute) location's field of vision.
@@ -131,8 +121,10 @@ public class MobileTrackedField implements RealtimeImageProcessor, StepNavigator
 		synchronized (frameLock) {
 			currentFrame = mat;
 			nextTime = System.currentTimeMillis();
-			if (waitForFrame && !waitForNavigation)
+			if (waitForFrame && !waitForNavigation) {
 				waitForFrame = false;
+				frameLock.notifyAll();
+			}
 		}
 	}
 
@@ -163,13 +155,30 @@ public class MobileTrackedField implements RealtimeImageProcessor, StepNavigator
 		notFound.clear();
 		notFound.addAll(objects);
 		
-		//Continue while there are objects that have not been updated.
-		while (!notFound.isEmpty()) {
-			Point location = nextTargetLocation();
-			navigator.setTarget(location);
+		//Visit every stop of this cycle's tour.
+		List<TourPlanner.Stop> tour = tourPlanner.plan(location, objects);
+		Point offset = new Point();
+		for (TourPlanner.Stop stop: tour) {
+			if (!active)
+				return;
+			MathUtils.set(offset, stop.location.x - location.x, stop.location.y - location.y);
+			synchronized (frameLock) {
+				waitForNavigation = waitForFrame = true;
+			}
+			navigator.setTarget(offset);
 			navigator.start();
+			if (!navigator.isRunning()) {
+				//The navigator is not calibrated or the stage is busy; try again next cycle
+				synchronized (frameLock) {
+					waitForNavigation = waitForFrame = false;
+				}
+				return;
+			}
 			waitForMotion();
 			synchronized (frameLock) {
+				MathUtils.add(location, navigationMoved);
+				if (navigationMeasured)
+					notFound.removeAll(stop.objects);
 				//currentFov = new MobileFov();;
 			}
 		}
@@ -188,24 +197,34 @@ public class MobileTrackedField implements RealtimeImageProcessor, StepNavigator
 	public void navigationComplete(Point target, Point moved, Point error) {
 		synchronized (frameLock) {
 			waitForNavigation = false;
+			navigationMeasured = true;
+			MathUtils.set(navigationError, error);
+			MathUtils.set(navigationMoved, moved);
+			frameLock.notifyAll();
+		}
+	}
+
+	//The predicted motion is the best estimate of where the stage is, but the stop's objects are not counted as seen.
+	public void navigationLost(Point target, Point moved, Point error) {
+		synchronized (frameLock) {
+			waitForNavigation = false;
+			navigationMeasured = false;
 			MathUtils.set(navigationError, error);
 			MathUtils.set(navigationMoved, moved);
+			frameLock.notifyAll();
 		}
 	}
 
 	//Wait for the navigator to finish moving and the frame to update.
 	private void waitForMotion() {
-		Lock lock = new ReentrantLock();
-		Condition condition = lock.newCondition();
-		lock.lock();
-		try {
-			while (waitForNavigation || waitForFrame) {
-				condition.await();
+		synchronized (frameLock) {
+			try {
+				while (waitForNavigation || waitForFrame) {
+					frameLock.wait();
+				}
+			} catch (InterruptedException e) {
+				stop();
 			}
-		} catch (InterruptedException e) {
-			stop();
-		} finally {
-			lock.unlock();
 		}
 	}
 }
@@ -0,0 +1,332 @@
+package edu.berkeley.cellscope.cscore.celltracker.mobilestage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Point;
+
+import edu.berkeley.cellscope.cscore.cameraui.TouchControl;
+import edu.berkeley.cellscope.cscore.celltracker.MathUtils;
+import edu.berkeley.cellscope.cscore.celltracker.MotionPlanner;
+import edu.berkeley.cellscope.cscore.celltracker.StageModel;
+import edu.berkeley.cellscope.cscore.celltracker.StepCalibrator;
+
+/**
+ * Plans the order in which MobileTrackedField visits its objects in each revisit cycle.
+ * 1.	Objects are covered with as few fov centers as possible (see FovClusterer), and each center becomes a stop.
+ * 2.	A tour is built by repeatedly moving to the cheapest remaining stop.
+ * 3.	The tour is improved with 2-opt (reversing a run of stops) and Or-opt (moving a run of up to
+ * 		three stops elsewhere) until neither finds an improvement.
+ * The cost of a move is the stage's travel time from MotionPlanner, including the extra steps backlash costs
+ * whenever an axis reverses. Without a calibrated stage, the straight-line distance in pixels is used instead.
+ * The tour does not return to its start, since the next cycle begins wherever this one ends.
+ *
+ * Improvement runs in the tracking loop, so each candidate is costed incrementally. The cost and the last direction
+ * along each axis are kept for every prefix of the current tour, so a candidate is walked from its first changed stop.
+ * Once it is past the changed stops with the same directions as the current tour, the rest of its cost is the same,
+ * and is taken from the prefixes. Improvement also stops once the time limit for the cycle runs out.
+ *
+ * getGreedyCost() is the cost of the previous approach, which moved to the closest object not yet seen,
+ * for comparison with getTourCost().
+ */
+public class TourPlanner {
+	private final StepCalibrator calibrator;	//null to plan by distance
+	private final MotionPlanner motion;
+	private final FovClusterer clusterer;
+	private double coverRadius;
+	private double tourCost, greedyCost;
+	private int stopCount, greedyStopCount;
+	private final int[] signs;					//direction of the last move along each axis, for backlash
+	private double[] prefixCost;				//cost of the first k moves of the current tour
+	private int[] prefixSignX, prefixSignY;		//signs after the first k moves of the current tour
+	private boolean useSteps;					//false to plan by distance
+	private Point xStep, yStep;					//cached from the StageModel for the current plan
+	private double det;
+	private final double[] backlash;			//cached from the StageModel, indexed by axis then sign (0 for +)
+	private long timeLimit, deadline;			//milliseconds allowed for improvement, and when the current plan's runs out
+
+	private static final int OR_OPT_LENGTH = 3;	//Longest run of stops moved by Or-opt
+	private static final int MAX_PASSES = 20;
+	public static final long DEFAULT_TIME_LIMIT = 30;	//Milliseconds of improvement per plan
+
+	public TourPlanner(StepCalibrator c, MotionPlanner m, double r) {
+		calibrator = c;
+		motion = m;
+		coverRadius = r;
+		clusterer = new FovClusterer(r);
+		signs = new int[2];
+		backlash = new double[4];
+		timeLimit = DEFAULT_TIME_LIMIT;
+	}
+
+	/* Longest time spent improving each tour, in milliseconds. The best tour found by then is used. */
+	public void setTimeLimit(long ms) {
+		timeLimit = ms;
+	}
+
+	/* Objects within r of a stop are seen from that stop. */
+	public void setCoverRadius(double r) {
+		coverRadius = r;
+		clusterer.setReach(r);
+	}
+
+	public double getTourCost() {
+		return tourCost;
+	}
+
+	public double getGreedyCost() {
+		return greedyCost;
+	}
+
+	/* Number of stops in the last tour, and in the greedy approach for the same objects. */
+	public int getStopCount() {
+		return stopCount;
+	}
+
+	public int getGreedyStopCount() {
+		return greedyStopCount;
+	}
+
+	/* Plan a tour, starting at start, that sees every object. */
+	public List<Stop> plan(Point start, List<MobileObj> objects) {
+		List<Stop> stops = clusterer.cluster(objects);
+		int n = stops.size();
+		prepareCosts();
+		int[] order = new int[n];
+		nearestNeighbour(start, stops, order);
+		prefixCost = new double[n + 1];
+		prefixSignX = new int[n + 1];
+		prefixSignY = new int[n + 1];
+		tourCost = walk(start, stops, order);
+		int[] candidate = new int[n];
+		deadline = System.currentTimeMillis() + timeLimit;
+		for (int pass = 0; pass < MAX_PASSES && !outOfTime(); pass ++) {
+			boolean improved = twoOpt(start, stops, order, candidate);
+			improved = orOpt(start, stops, order, candidate) || improved;
+			if (!improved)
+				break;
+		}
+		greedyCost = greedyCost(start, objects);
+		stopCount = n;
+		System.out.println("tour of " + n + " stops for " + objects.size() + " objects, cost " + tourCost
+				+ " (greedy " + greedyStopCount + " stops, cost " + greedyCost + ")");
+		List<Stop> tour = new ArrayList<Stop>(n);
+		for (int i: order)
+			tour.add(stops.get(i));
+		return tour;
+	}
+
+	private void nearestNeighbour(Point start, List<Stop> stops, int[] order) {
+		int n = stops.size();
+		boolean[] used = new boolean[n];
+		Point current = start;
+		signs[0] = signs[1] = 0;
+		for (int k = 0; k < n; k ++) {
+			int best = -1;
+			double bestCost = 0;
+			int[] saved = new int[]{signs[0], signs[1]};
+			int[] bestSigns = new int[2];
+			for (int i = 0; i < n; i ++) {
+				if (used[i])
+					continue;
+				signs[0] = saved[0];
+				signs[1] = saved[1];
+				double c = moveCost(current, stops.get(i).location);
+				if (best == -1 || c < bestCost) {
+					best = i;
+					bestCost = c;
+					bestSigns[0] = signs[0];
+					bestSigns[1] = signs[1];
+				}
+			}
+			used[best] = true;
+			order[k] = best;
+			signs[0] = bestSigns[0];
+			signs[1] = bestSigns[1];
+			current = stops.get(best).location;
+		}
+	}
+
+	//Reverse order[i..j] whenever that lowers the cost.
+	private boolean twoOpt(Point start, List<Stop> stops, int[] order, int[] candidate) {
+		int n = order.length;
+		boolean improved = false;
+		for (int i = 0; i < n - 1 && !outOfTime(); i ++) {
+			for (int j = i + 1; j < n; j ++) {
+				System.arraycopy(order, 0, candidate, 0, n);
+				for (int a = i, b = j; a < b; a ++, b --) {
+					candidate[a] = order[b];
+					candidate[b] = order[a];
+				}
+				improved = accept(start, stops, order, candidate, i, j) || improved;
+			}
+		}
+		return improved;
+	}
+
+	//Move a run of up to OR_OPT_LENGTH stops to another position whenever that lowers the cost.
+	private boolean orOpt(Point start, List<Stop> stops, int[] order, int[] candidate) {
+		int n = order.length;
+		boolean improved = false;
+		for (int len = 1; len <= OR_OPT_LENGTH && len < n; len ++) {
+			for (int i = 0; i + len <= n && !outOfTime(); i ++) {
+				for (int to = 0; to <= n - len; to ++) {
+					if (to == i)
+						continue;
+					//Remove order[i, i + len) and insert it so that it begins at index to
+					int c = 0;
+					for (int k = 0; k < n; k ++) {
+						if (c == to)
+							for (int m = 0; m < len; m ++)
+								candidate[c ++] = order[i + m];
+						if (k < i || k >= i + len)
+							candidate[c ++] = order[k];
+					}
+					if (c == to)
+						for (int m = 0; m < len; m ++)
+							candidate[c ++] = order[i + m];
+					improved = accept(start, stops, order, candidate, Math.min(i, to), Math.max(i, to) + len - 1) || improved;
+				}
+			}
+		}
+		return improved;
+	}
+
+	//candidate differs from order only in [first, last].
+	private boolean accept(Point start, List<Stop> stops, int[] order, int[] candidate, int first, int last) {
+		double c = candidateCost(start, stops, candidate, first, last);
+		if (c >= tourCost)
+			return false;
+		System.arraycopy(candidate, 0, order, 0, order.length);
+		tourCost = walk(start, stops, order);
+		return true;
+	}
+
+	//Cost of the whole tour, recording the cost and signs of every prefix.
+	private double walk(Point start, List<Stop> stops, int[] order) {
+		signs[0] = signs[1] = 0;
+		double total = 0;
+		Point current = start;
+		for (int k = 0; k < order.length; k ++) {
+			prefixCost[k] = total;
+			prefixSignX[k] = signs[0];
+			prefixSignY[k] = signs[1];
+			Point next = stops.get(order[k]).location;
+			total += moveCost(current, next);
+			current = next;
+		}
+		prefixCost[order.length] = total;
+		prefixSignX[order.length] = signs[0];
+		prefixSignY[order.length] = signs[1];
+		return total;
+	}
+
+	//Cost of candidate, walking only from its first changed stop until it rejoins the current tour.
+	private double candidateCost(Point start, List<Stop> stops, int[] candidate, int first, int last) {
+		int n = candidate.length;
+		signs[0] = prefixSignX[first];
+		signs[1] = prefixSignY[first];
+		double total = prefixCost[first];
+		Point current = first == 0 ? start : stops.get(candidate[first - 1]).location;
+		for (int k = first; k < n; k ++) {
+			//Move k starts and ends at the same stops as in the current tour; with the same signs, so does everything after it
+			if (k > last + 1 && signs[0] == prefixSignX[k] && signs[1] == prefixSignY[k])
+				return total + prefixCost[n] - prefixCost[k];
+			if (total >= tourCost)
+				return total;
+			Point next = stops.get(candidate[k]).location;
+			total += moveCost(current, next);
+			current = next;
+		}
+		return total;
+	}
+
+	private boolean outOfTime() {
+		return System.currentTimeMillis() > deadline;
+	}
+
+	//Cache what moveCost() needs from the StageModel, so that costing a move does not allocate or lock.
+	private void prepareCosts() {
+		useSteps = calibrator != null && calibrator.isCalibrated();
+		if (!useSteps)
+			return;
+		StageModel model = calibrator.getStageModel();
+		xStep = model.getXStep();
+		yStep = model.getYStep();
+		det = xStep.x * yStep.y - yStep.x * xStep.y;
+		useSteps = det != 0;
+		backlash[0] = model.getBacklash(TouchControl.xPositive);
+		backlash[1] = model.getBacklash(TouchControl.xNegative);
+		backlash[2] = model.getBacklash(TouchControl.yPositive);
+		backlash[3] = model.getBacklash(TouchControl.yNegative);
+	}
+
+	//Move to the closest object not yet seen, and count every object within reach of each fov as seen.
+	private double greedyCost(Point start, List<MobileObj> objects) {
+		int n = objects.size();
+		boolean[] seen = new boolean[n];
+		double r2 = coverRadius * coverRadius;
+		signs[0] = signs[1] = 0;
+		double total = 0;
+		Point current = start;
+		greedyStopCount = 0;
+		for (int remaining = n; remaining > 0; ) {
+			int best = -1;
+			double bestDistSqr = 0;
+			for (int i = 0; i < n; i ++) {
+				if (seen[i])
+					continue;
+				double d = MathUtils.distSqr(current, objects.get(i).getAbsoluteLocation());
+				if (best == -1 || d < bestDistSqr) {
+					best = i;
+					bestDistSqr = d;
+				}
+			}
+			Point next = objects.get(best).getAbsoluteLocation();
+			total += moveCost(current, next);
+			current = next;
+			greedyStopCount ++;
+			for (int i = 0; i < n; i ++) {
+				if (!seen[i] && MathUtils.distSqr(current, objects.get(i).getAbsoluteLocation()) <= r2) {
+					seen[i] = true;
+					remaining --;
+				}
+			}
+		}
+		return total;
+	}
+
+	/* Cost of moving from a to b, given the directions of the previous moves in signs, which are updated. */
+	private double moveCost(Point a, Point b) {
+		double dx = b.x - a.x, dy = b.y - a.y;
+		if (!useSteps)
+			return Math.hypot(dx, dy);
+		//As StageModel.getRequiredSteps(), with the matrix cached
+		double stepsX = (dx * yStep.y - yStep.x * dy) / det;
+		double stepsY = (xStep.x * dy - dx * xStep.y) / det;
+		double sx = Math.abs(stepsX) + backlash(0, stepsX);
+		double sy = Math.abs(stepsY) + backlash(1, stepsY);
+		return motion.estimateTime((int)Math.round(sx), (int)Math.round(sy));
+	}
+
+	//Backlash steps added to a move of s steps along an axis, if it reverses that axis.
+	private double backlash(int axis, double s) {
+		int sign = (int)Math.signum(Math.round(s));
+		if (sign == 0)
+			return 0;
+		boolean reverses = signs[axis] != 0 && signs[axis] != sign;
+		signs[axis] = sign;
+		return reverses ? backlash[axis * 2 + (sign > 0 ? 0 : 1)] : 0;
+	}
+
+	/** A position to move to, and the objects that are seen there. */
+	public static class Stop {
+		public final Point location;
+		public final List<MobileObj> objects;
+
+		Stop(Point loc) {
+			location = loc;
+			objects = new ArrayList<MobileObj>();
+		}
+	}
+}
@@ -18,6 +18,7 @@ import org.opencv.imgproc.Imgproc;
 
 import android.graphics.Bitmap;
 import edu.berkeley.cellscope.cscore.celltracker.Colors;
+import edu.berkeley.cellscope.cscore.celltracker.MatPool;
 
 public class CellDetection {
 	public static final int CHANNEL_RED = 2;
@@ -71,7 +72,7 @@ public class CellDetection {
 	public static ContourData removeDebris(ContourData contours, double boundary) {
 		double min = getMedian(contours) * boundary;
 		//Eliminate any regions smaller than specified range
-		Mat erasedDebris = Mat.zeros(contours.bw.size(), contours.bw.type());
+		Mat erasedDebris = acquireZeros(contours.bw);
 		int elements = contours.whiteContours.size();
 		int[] data = new int[4];
 		for (int i = 0; i < elements; i ++) {
@@ -85,7 +86,7 @@ public class CellDetection {
 			}
 		}
 		Core.subtract(contours.bw, erasedDebris, contours.bw);
-		erasedDebris.release();
+		MatPool.getShared().release(erasedDebris);
 		return contours;
 	}
 	
@@ -93,7 +94,7 @@ public class CellDetection {
 		double max = getMedian(contours) * boundary;
 		//Eliminate any regions greater than the specified range.
 		//Erased regions are saved separately for further processing
-		Mat background = Mat.zeros(contours.bw.size(), contours.bw.type());
+		Mat background = acquireZeros(contours.bw);
 		List<MatOfPoint> backgroundContours = new ArrayList<MatOfPoint>();
 		int elements = contours.whiteContours.size();
 		int[] data = new int[4];
@@ -108,7 +109,7 @@ public class CellDetection {
 		}
 		background.copyTo(contours.background);
 		Core.subtract(contours.bw, background, contours.bw);
-		background.release();
+		MatPool.getShared().release(background);
 		return contours;
 	}
 	
@@ -168,7 +169,7 @@ public class CellDetection {
 	}
 	
 	public static ContourData removeOblong(ContourData contours, double threshold) {
-		Mat erasedOblong = Mat.zeros(contours.bw.size(), contours.bw.type());
+		Mat erasedOblong = acquireZeros(contours.bw);
 		int elements = contours.whiteContours.size();
 		int[] data = new int[4];
 		for (int i = 0; i < elements; i ++) {
@@ -190,7 +191,7 @@ public class CellDetection {
 			}
 		}
 		Core.subtract(contours.bw, erasedOblong, contours.bw);
-		erasedOblong.release();
+		MatPool.getShared().release(erasedOblong);
 		return contours;
 	}
 	
@@ -327,10 +328,17 @@ public class CellDetection {
 	}
 	
 	public static void addRegion(Mat dst, List<MatOfPoint> contours, Mat hierarchy, int[] data, int index) {
-		Mat isolated = Mat.zeros(dst.size(), dst.type());
+		Mat isolated = acquireZeros(dst);
 		isolateRegion(isolated, contours, hierarchy, data, index);
 		Core.add(dst, isolated, dst);
-		isolated.release();
+		MatPool.getShared().release(isolated);
+	}
+	
+	//Get a blank buffer shaped like mat from the shared pool. It must be returned with MatPool.release().
+	private static Mat acquireZeros(Mat mat) {
+		Mat zeros = MatPool.getShared().acquire(mat);
+		zeros.setTo(Colors.BLACK);
+		return zeros;
 	}
 
 	public static void imfill(Mat src) {
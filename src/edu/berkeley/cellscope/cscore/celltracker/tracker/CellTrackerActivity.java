@@ -30,6 +30,7 @@ import edu.berkeley.cellscope.cscore.celltracker.MathUtils;
 import edu.berkeley.cellscope.cscore.celltracker.OpenCVCameraActivity;
 import edu.berkeley.cellscope.cscore.celltracker.TrackedCallback;
 import edu.berkeley.cellscope.cscore.celltracker.TrackedField;
+import edu.berkeley.cellscope.cscore.celltracker.TrackedObject;
 
 public class CellTrackerActivity extends OpenCVCameraActivity implements TrackedCallback, View.OnTouchListener {
 	
@@ -46,8 +47,10 @@ public class CellTrackerActivity extends OpenCVCameraActivity implements Tracked
 	private String save;
 	private boolean timelapse;
 	private int interval;
+	private int threads, pyramidLevels, motionModel, preprocessing;
+	private boolean roiPreprocessing;
 	private File storageDir;
-	private File outputFile;
+	private File outputFile, trajectoryFile;
 	private String fileHeader;
 	
 	//Cell detection parameters
@@ -99,6 +102,11 @@ public class CellTrackerActivity extends OpenCVCameraActivity implements Tracked
 		if (save == null) save = "";
 		timelapse = intent.getBooleanExtra(TrackerSettingsActivity.TIMELAPSE_INFO, false);
 		interval = intent.getIntExtra(TrackerSettingsActivity.INTERVAL_INFO, TrackerSettingsActivity.DEFAULT_INTERVAL);
+		threads = intent.getIntExtra(TrackerSettingsActivity.THREADS_INFO, TrackerSettingsActivity.DEFAULT_THREADS);
+		pyramidLevels = intent.getIntExtra(TrackerSettingsActivity.PYRAMID_INFO, TrackerSettingsActivity.DEFAULT_PYRAMID_LEVELS);
+		motionModel = intent.getIntExtra(TrackerSettingsActivity.MOTION_INFO, TrackedObject.MOTION_AVERAGE);
+		preprocessing = intent.getIntExtra(TrackerSettingsActivity.PREPROCESS_INFO, TrackedField.PREPROCESS_FULL);
+		roiPreprocessing = intent.getBooleanExtra(TrackerSettingsActivity.PREPROCESS_ROI_INFO, false);
 		
 		String name = (save.length() == 0) ? "unsaved" : save;
 		String intervalText = interval + "ms";
@@ -112,6 +120,7 @@ public class CellTrackerActivity extends OpenCVCameraActivity implements Tracked
 
 		if (save.length() != 0) {
 			outputFile = new File(storageDir.getPath() + File.separator + save + ".csv");
+			trajectoryFile = new File(storageDir.getPath() + File.separator + save + ".trj");
 			fileHeader =  save;
 		}
 		if (!storageDir.exists())
@@ -164,11 +173,16 @@ public class CellTrackerActivity extends OpenCVCameraActivity implements Tracked
 		else
 			field.resetData();
 		field.setOutputFile(outputFile, fileHeader);
+		field.setBinaryOutputFile(trajectoryFile);
+		field.setMotionModel(motionModel);
 		runDetection(mRgba);
 		for (Rect r: rects)
 			field.addObject(r);
 		field.setCallback(this);
 		field.setInterval(interval);
+		field.setThreadCount(threads);
+		field.setPyramidLevels(pyramidLevels);
+		field.setPreprocessing(preprocessing, roiPreprocessing);
 		field.initiateUpdateThread();
 		fieldReady = true;
 		selected = null;
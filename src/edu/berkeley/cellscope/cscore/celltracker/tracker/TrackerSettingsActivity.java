@@ -7,22 +7,36 @@ import android.view.View;
 import android.widget.CheckBox;
 import android.widget.EditText;
 import edu.berkeley.cellscope.cscore.R;
+import edu.berkeley.cellscope.cscore.celltracker.TrackedField;
+import edu.berkeley.cellscope.cscore.celltracker.TrackedObject;
 
 public class TrackerSettingsActivity extends Activity {
-	CheckBox toggle;
-	EditText nameField, intervalField;
+	CheckBox toggle, predictToggle, fastToggle, roiToggle;
+	EditText nameField, intervalField, threadsField, pyramidField;
 	public static final String SAVE_INFO = "save";
 	public static final String INTERVAL_INFO = "interval";
 	public static final String TIMELAPSE_INFO = "timelapse";
+	public static final String THREADS_INFO = "threads";
+	public static final String PYRAMID_INFO = "pyramid";
+	public static final String MOTION_INFO = "motion";
+	public static final String PREPROCESS_INFO = "preprocess";
+	public static final String PREPROCESS_ROI_INFO = "preprocess_roi";
 	public static final int DEFAULT_INTERVAL = 1000;
 	public static final int MINIMUM_INTERVAL = 250;
+	public static final int DEFAULT_THREADS = TrackedField.AUTO_THREADS;
+	public static final int DEFAULT_PYRAMID_LEVELS = 0;
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_tracker_settings);
 		toggle = (CheckBox)(findViewById(R.id.tracker_timelapse_checkbox));
+		predictToggle = (CheckBox)(findViewById(R.id.tracker_predict_checkbox));
+		fastToggle = (CheckBox)(findViewById(R.id.tracker_fast_checkbox));
+		roiToggle = (CheckBox)(findViewById(R.id.tracker_roi_checkbox));
 		nameField = (EditText)(findViewById(R.id.tracker_name_field));
 		intervalField = (EditText)(findViewById(R.id.tracker_timelapse_field));
+		threadsField = (EditText)(findViewById(R.id.tracker_threads_field));
+		pyramidField = (EditText)(findViewById(R.id.tracker_pyramid_field));
 	}
 
 	public void proceed(View v) {
@@ -32,10 +46,23 @@ public class TrackerSettingsActivity extends Activity {
 		int interval = DEFAULT_INTERVAL;
 		if (timeStr.length() > 0) interval = Integer.parseInt(timeStr);
 		if (interval < MINIMUM_INTERVAL) interval = MINIMUM_INTERVAL;
+		String threadStr = threadsField.getText().toString();
+		int threads = DEFAULT_THREADS;
+		if (threadStr.length() > 0) threads = Integer.parseInt(threadStr);
+		String pyramidStr = pyramidField.getText().toString();
+		int pyramid = DEFAULT_PYRAMID_LEVELS;
+		if (pyramidStr.length() > 0) pyramid = Integer.parseInt(pyramidStr);
 		boolean timelapse = toggle.isChecked();
+		int motion = predictToggle.isChecked() ? TrackedObject.MOTION_KALMAN : TrackedObject.MOTION_AVERAGE;
+		int preprocess = fastToggle.isChecked() ? TrackedField.PREPROCESS_LUT : TrackedField.PREPROCESS_FULL;
 		intent.putExtra(SAVE_INFO, save);
 		intent.putExtra(INTERVAL_INFO, interval);
 		intent.putExtra(TIMELAPSE_INFO, timelapse);
+		intent.putExtra(THREADS_INFO, threads);
+		intent.putExtra(PYRAMID_INFO, pyramid);
+		intent.putExtra(MOTION_INFO, motion);
+		intent.putExtra(PREPROCESS_INFO, preprocess);
+		intent.putExtra(PREPROCESS_ROI_INFO, roiToggle.isChecked());
 		startActivity(intent);
 	}
 }
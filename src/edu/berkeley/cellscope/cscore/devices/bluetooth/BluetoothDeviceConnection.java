@@ -28,6 +28,8 @@ public class BluetoothDeviceConnection implements DeviceConnection {
 
 	// Name of the connected device
 	private String mConnectedDeviceName = null;
+	// MAC address of the last device a connection was attempted with
+	private String mConnectedDeviceAddress = null;
 
 	private BluetoothAdapter mBluetoothAdapter = null;
 	private boolean bluetoothEnabled = false;
@@ -183,6 +185,7 @@ public class BluetoothDeviceConnection implements DeviceConnection {
 					.getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
 			// Get the BLuetoothDevice object
 			BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address); //I deleted "m." before the method getRemoteDevice()
+			mConnectedDeviceAddress = address;
 			// Attempt to connect to the device
 			mSerialService.connect(device);
 		}
@@ -227,6 +230,8 @@ public class BluetoothDeviceConnection implements DeviceConnection {
 	}
 
 	public String getDeviceAddress() {
-		return "";
+		if (mConnectedDeviceAddress == null)
+			return "";
+		return mConnectedDeviceAddress;
 	}
 }